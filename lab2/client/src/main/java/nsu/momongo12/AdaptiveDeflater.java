@@ -0,0 +1,69 @@
+package nsu.momongo12;
+
+import java.nio.ByteBuffer;
+import java.util.zip.Deflater;
+
+/**
+ * Сжатие содержимого для маркера DEFLATE: быстрый уровень Deflate без
+ * обёртки zlib. Несжимаемые данные (архивы, медиа) этот уровень жмёт в
+ * десятки раз медленнее, чем пишет хранимые блоки, ничего не выигрывая,
+ * поэтому после каждого куска, поданного через {@link #setInput(ByteBuffer)},
+ * проверяется, насколько он ужался. Если хуже, чем до 9/10, следующие куски
+ * идут хранимыми блоками, а каждый {@value #PROBE_INTERVAL}-й снова пробуется
+ * сжать. Поток Deflate остаётся одним, на сервере переключения не видны.
+ */
+class AdaptiveDeflater extends Deflater {
+
+    // быстрый уровень: сжатие не должно стать узким местом вместо сети
+    private static final int LEVEL = Deflater.BEST_SPEED;
+    private static final int PROBE_INTERVAL = 32;
+
+    private long chunkBytesRead;
+    private long chunkBytesWritten;
+    private boolean storing;
+    private int storedChunks;
+
+    AdaptiveDeflater() {
+        super(LEVEL, true);
+    }
+
+    @Override
+    public void setInput(ByteBuffer input) {
+        adaptLevel();
+        super.setInput(input);
+    }
+
+    @Override
+    public void reset() {
+        super.reset();
+        chunkBytesRead = 0;
+        chunkBytesWritten = 0;
+        storing = false;
+        setLevel(LEVEL);
+    }
+
+    /**
+     * Новый уровень применяется со следующего вызова deflate; выход
+     * предыдущего куска немного отстаёт от входа, но на следующем куске
+     * отставание учитывается.
+     */
+    private void adaptLevel() {
+        long read = getBytesRead() - chunkBytesRead;
+        long written = getBytesWritten() - chunkBytesWritten;
+        chunkBytesRead = getBytesRead();
+        chunkBytesWritten = getBytesWritten();
+        if (read == 0) {
+            return;
+        }
+        if (storing) {
+            if (++storedChunks == PROBE_INTERVAL) {
+                storing = false;
+                setLevel(LEVEL);
+            }
+        } else if (written * 10 > read * 9) {
+            storing = true;
+            storedChunks = 0;
+            setLevel(NO_COMPRESSION);
+        }
+    }
+}
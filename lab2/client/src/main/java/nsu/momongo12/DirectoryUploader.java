@@ -0,0 +1,280 @@
+package nsu.momongo12;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+import java.util.zip.Deflater;
+
+/**
+ * Загрузка каталога одной сессией: файлы идут друг за другом по одному
+ * соединению, мелкие собираются в общий буфер, подтверждения читает
+ * отдельный поток, а число неподтверждённых файлов ограничено окном.
+ */
+public class DirectoryUploader {
+
+    private static final int BATCH_BUFFER_SIZE = 256 * 1024;
+
+    private final Path root;
+    private final String serverHost;
+    private final int serverPort;
+    private final boolean crc32c;
+    private final boolean sha256;
+    private final int window;
+
+    private final ByteBuffer out = ByteBuffer.allocateDirect(BATCH_BUFFER_SIZE);
+    // со сжатием файл читается сюда, а в общий буфер пишет компрессор, один на все файлы
+    private final Deflater deflater;
+    private final ByteBuffer in;
+
+    public DirectoryUploader(Path root, String serverHost, int serverPort, boolean crc32c, boolean sha256,
+                             boolean deflate, int window) {
+        this.root = root;
+        this.serverHost = serverHost;
+        this.serverPort = serverPort;
+        this.crc32c = crc32c;
+        this.sha256 = sha256;
+        this.window = window;
+        this.deflater = deflate ? new AdaptiveDeflater() : null;
+        this.in = deflate ? ByteBuffer.allocateDirect(BATCH_BUFFER_SIZE) : null;
+    }
+
+    public void upload() throws IOException {
+        List<Path> files;
+        try (Stream<Path> walk = Files.walk(root)) {
+            files = walk.filter(Files::isRegularFile).sorted().filter(this::isUploadable).collect(Collectors.toList());
+        }
+
+        Semaphore permits = new Semaphore(window);
+        try (SocketChannel socket = SocketChannel.open(new InetSocketAddress(serverHost, serverPort))) {
+            // хвост буфера, отправленный при заполненном окне, не должен ждать подтверждения предыдущего сегмента
+            socket.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            AckReader acks = new AckReader(socket, files, permits);
+            Thread ackThread = new Thread(acks, "acks");
+            ackThread.start();
+
+            out.putInt(FileClient.SESSION_MARKER);
+            try {
+                for (Path file : files) {
+                    if (!permits.tryAcquire()) {
+                        // окно заполнено: всё накопленное должно уйти, иначе подтверждений не дождаться
+                        flush(socket);
+                        permits.acquire();
+                    }
+                    if (acks.failed) {
+                        break;
+                    }
+                    sendFile(socket, file);
+                }
+                flush(socket);
+                socket.shutdownOutput();
+                ackThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Загрузка прервана", e);
+            }
+
+            System.out.println("Передано файлов: " + acks.succeeded + " из " + files.size());
+        } finally {
+            if (deflater != null) {
+                deflater.end();
+            }
+        }
+    }
+
+    private boolean isUploadable(Path file) {
+        try {
+            if (relativeName(file).length > FileClient.MAX_NAME_LENGTH) {
+                System.err.println("Пропущен " + file + ": длина имени превышает 4096 байт в UTF-8");
+                return false;
+            }
+            if (Files.size(file) > FileClient.MAX_FILE_SIZE) {
+                System.err.println("Пропущен " + file + ": размер превышает 1 ТБ");
+                return false;
+            }
+            return true;
+        } catch (IOException e) {
+            System.err.println("Пропущен " + file + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    private byte[] relativeName(Path file) {
+        return root.relativize(file).toString().replace(File.separatorChar, '/').getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Кладёт в буфер заголовок, содержимое и трейлер файла; буфер уходит в
+     * сокет по заполнении. Суммы считаются по байтам файла, сжатым или нет.
+     */
+    private void sendFile(SocketChannel socket, Path file) throws IOException {
+        byte[] nameBytes = relativeName(file);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long fileSize = channel.size();
+            ensureSpace(socket, Integer.BYTES * 4 + nameBytes.length + Long.BYTES);
+            if (crc32c) {
+                out.putInt(FileClient.CRC32C_MARKER);
+            }
+            if (sha256) {
+                out.putInt(FileClient.SHA256_MARKER);
+            }
+            if (deflater != null) {
+                out.putInt(FileClient.DEFLATE_MARKER);
+            }
+            out.putInt(nameBytes.length).put(nameBytes).putLong(fileSize);
+
+            CRC32C crc = crc32c ? new CRC32C() : null;
+            MessageDigest digest = sha256 ? newSha256() : null;
+            if (deflater != null) {
+                sendDeflated(socket, file, channel, fileSize, crc, digest);
+            } else {
+                sendContent(socket, file, channel, fileSize, crc, digest);
+            }
+
+            ensureSpace(socket, Integer.BYTES + 32);
+            if (crc != null) {
+                out.putInt((int) crc.getValue());
+            }
+            if (digest != null) {
+                out.put(digest.digest());
+            }
+        }
+    }
+
+    private void sendContent(SocketChannel socket, Path file, FileChannel channel, long fileSize, CRC32C crc,
+                             MessageDigest digest) throws IOException {
+        long position = 0;
+        while (position < fileSize) {
+            if (!out.hasRemaining()) {
+                flush(socket);
+            }
+            int start = out.position();
+            out.limit((int) Math.min(out.capacity(), start + (fileSize - position)));
+            int read = channel.read(out, position);
+            out.limit(out.capacity());
+            if (read == -1) {
+                throw new IOException("Файл " + file + " укоротился во время передачи");
+            }
+            if (crc != null) {
+                crc.update(out.slice(start, read));
+            }
+            if (digest != null) {
+                digest.update(out.slice(start, read));
+            }
+            position += read;
+        }
+    }
+
+    /**
+     * Содержимое читается в отдельный буфер, суммируется и сжимается прямо в общий буфер отправки.
+     */
+    private void sendDeflated(SocketChannel socket, Path file, FileChannel channel, long fileSize, CRC32C crc,
+                              MessageDigest digest) throws IOException {
+        deflater.reset();
+        long position = 0;
+        while (position < fileSize) {
+            in.clear();
+            in.limit((int) Math.min(in.capacity(), fileSize - position));
+            if (channel.read(in, position) == -1) {
+                throw new IOException("Файл " + file + " укоротился во время передачи");
+            }
+            in.flip();
+            position += in.remaining();
+            if (crc != null) {
+                crc.update(in.slice());
+            }
+            if (digest != null) {
+                digest.update(in.slice());
+            }
+            deflater.setInput(in);
+            deflate(socket);
+        }
+        deflater.finish();
+        deflate(socket);
+    }
+
+    private void deflate(SocketChannel socket) throws IOException {
+        while (!deflater.finished()) {
+            if (!out.hasRemaining()) {
+                flush(socket);
+            }
+            if (deflater.deflate(out) == 0 && deflater.needsInput()) {
+                return;
+            }
+        }
+    }
+
+    private MessageDigest newSha256() throws IOException {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("SHA-256 недоступен", e);
+        }
+    }
+
+    private void ensureSpace(SocketChannel socket, int length) throws IOException {
+        if (out.remaining() < length) {
+            flush(socket);
+        }
+    }
+
+    private void flush(SocketChannel socket) throws IOException {
+        out.flip();
+        FileClient.writeFully(socket, out);
+        out.clear();
+    }
+
+    /**
+     * Читает подтверждения - по байту на файл в порядке отправки - и освобождает место в окне.
+     */
+    private static final class AckReader implements Runnable {
+        private final SocketChannel socket;
+        private final List<Path> files;
+        private final Semaphore permits;
+
+        private volatile boolean failed;
+        private volatile int succeeded;
+
+        private AckReader(SocketChannel socket, List<Path> files, Semaphore permits) {
+            this.socket = socket;
+            this.files = files;
+            this.permits = permits;
+        }
+
+        @Override
+        public void run() {
+            try {
+                for (Path file : files) {
+                    int status = FileClient.readFully(socket, 1).get();
+                    if (status == FileClient.STATUS_OK) {
+                        succeeded++;
+                    } else if (status == FileClient.STATUS_CHECKSUM_MISMATCH) {
+                        System.err.println("Контрольная сумма на сервере не совпала: " + file);
+                    } else {
+                        System.err.println("Передача файла завершилась неудачей: " + file);
+                    }
+                    permits.release();
+                }
+            } catch (IOException e) {
+                System.err.println("Сессия прервана: " + e.getMessage());
+                failed = true;
+                // отправитель не должен ждать подтверждений, которых уже не будет
+                permits.release(files.size());
+            }
+        }
+    }
+}
@@ -2,15 +2,73 @@ package nsu.momongo12;
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
 import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.CRC32C;
+import java.util.zip.Deflater;
 
 public class FileClient {
 
-    private static final int BUFFER_SIZE = 8192;
+    // маркеры расширений перед длиной имени, см. ClientAttachment на сервере
+    static final int RESUME_MARKER = -1;
+    static final int CRC32C_MARKER = -2;
+    static final int SHA256_MARKER = -3;
+    static final int SESSION_MARKER = -4;
+    static final int DEFLATE_MARKER = -5;
+    static final int STATUS_OK = 1;
+    static final int STATUS_CHECKSUM_MISMATCH = 2;
+    static final int MAX_NAME_LENGTH = 4096;
+    static final long MAX_FILE_SIZE = 1L << 40; // 1 ТБ
+
+    private static final int RESUME_ATTEMPTS = 5;
+    private static final long RESUME_DELAY_MILLIS = 1000;
+    private static final int DEFAULT_WINDOW = 64;
+    private static final int CHECKSUM_BUFFER_SIZE = 1 << 20;
+
+    private final Path filePath;
+    private final byte[] nameBytes;
+    private final long fileSize;
+    private final String serverHost;
+    private final int serverPort;
+    private final boolean resume;
+    private final boolean crc32c;
+    private final boolean sha256;
+    private final boolean deflate;
+
+    private FileClient(Path filePath, byte[] nameBytes, long fileSize, String serverHost, int serverPort,
+                       Set<String> options) {
+        this.filePath = filePath;
+        this.nameBytes = nameBytes;
+        this.fileSize = fileSize;
+        this.serverHost = serverHost;
+        this.serverPort = serverPort;
+        this.resume = options.contains("--resume");
+        this.crc32c = options.contains("--crc32c");
+        this.sha256 = options.contains("--sha256");
+        this.deflate = options.contains("--deflate");
+    }
 
     public static void main(String[] args) {
-        if (args.length != 3) {
-            System.out.println("Использование: java FileClient <путь к файлу> <сервер> <порт>");
+        Set<String> options = new HashSet<>();
+        int window = DEFAULT_WINDOW;
+        boolean validOptions = args.length >= 3;
+        for (int i = 3; i < args.length; i++) {
+            if (args[i].startsWith("--window=")) {
+                window = Integer.parseInt(args[i].substring("--window=".length()));
+                validOptions &= window > 0;
+            } else {
+                options.add(args[i]);
+            }
+        }
+        if (!validOptions || !Set.of("--resume", "--crc32c", "--sha256", "--deflate").containsAll(options)) {
+            System.out.println("Использование: java FileClient <путь к файлу или каталогу> <сервер> <порт> "
+                    + "[--resume] [--crc32c] [--sha256] [--deflate] [--window=N]");
             return;
         }
 
@@ -19,6 +77,23 @@ public class FileClient {
         int serverPort = Integer.parseInt(args[2]);
 
         Path filePath = Paths.get(filePathStr);
+        if (options.contains("--resume") && options.contains("--deflate")) {
+            System.err.println("Докачка сжатого файла не поддерживается");
+            return;
+        }
+        if (Files.isDirectory(filePath)) {
+            if (options.contains("--resume")) {
+                System.err.println("Докачка для каталога не поддерживается");
+                return;
+            }
+            try {
+                new DirectoryUploader(filePath, serverHost, serverPort, options.contains("--crc32c"),
+                        options.contains("--sha256"), options.contains("--deflate"), window).upload();
+            } catch (IOException e) {
+                System.err.println("Ошибка клиента: " + e.getMessage());
+            }
+            return;
+        }
         if (!Files.exists(filePath) || !Files.isRegularFile(filePath)) {
             System.err.println("Указанный путь не существует или не является файлом");
             return;
@@ -27,47 +102,207 @@ public class FileClient {
         String fileName = filePath.getFileName().toString();
         try {
             byte[] nameBytes = fileName.getBytes("UTF-8");
-            if (nameBytes.length > 4096) {
+            if (nameBytes.length > MAX_NAME_LENGTH) {
                 System.err.println("Длина имени файла превышает 4096 байт в UTF-8");
                 return;
             }
 
             long fileSize = Files.size(filePath);
-            if (fileSize > (1L << 40)) { // 1 ТБ
+            if (fileSize > MAX_FILE_SIZE) {
                 System.err.println("Размер файла превышает 1 ТБ");
                 return;
             }
 
-            try (Socket socket = new Socket(serverHost, serverPort);
-                 DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
-                 DataInputStream dis = new DataInputStream(socket.getInputStream());
-                 InputStream fis = new BufferedInputStream(Files.newInputStream(filePath))) {
+            FileClient client = new FileClient(filePath, nameBytes, fileSize, serverHost, serverPort, options);
+            if (client.resume) {
+                client.uploadResumable();
+            } else {
+                client.upload();
+            }
+
+        } catch (IOException e) {
+            System.err.println("Ошибка клиента: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Докачиваемая загрузка: при обрыве соединения переподключается, и сервер
+     * сообщает, сколько байт у него уже есть.
+     */
+    private void uploadResumable() throws IOException {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                upload();
+                return;
+            } catch (IOException e) {
+                if (attempt == RESUME_ATTEMPTS) {
+                    throw e;
+                }
+                System.err.println("Соединение прервано (" + e.getMessage() + "), повтор через "
+                        + RESUME_DELAY_MILLIS + " мс");
+                try {
+                    Thread.sleep(RESUME_DELAY_MILLIS);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+            }
+        }
+    }
+
+    private void upload() throws IOException {
+        try (SocketChannel socket = SocketChannel.open(new InetSocketAddress(serverHost, serverPort));
+             FileChannel file = FileChannel.open(filePath, StandardOpenOption.READ)) {
 
-                dos.writeInt(nameBytes.length);
-                dos.write(nameBytes);
-                dos.writeLong(fileSize);
-                dos.flush();
+            ByteBuffer header = ByteBuffer.allocate(Integer.BYTES * 5 + nameBytes.length + Long.BYTES);
+            if (resume) {
+                header.putInt(RESUME_MARKER);
+            }
+            if (crc32c) {
+                header.putInt(CRC32C_MARKER);
+            }
+            if (sha256) {
+                header.putInt(SHA256_MARKER);
+            }
+            if (deflate) {
+                header.putInt(DEFLATE_MARKER);
+            }
+            header.putInt(nameBytes.length).put(nameBytes).putLong(fileSize).flip();
+            writeFully(socket, header);
 
-                byte[] buffer = new byte[BUFFER_SIZE];
-                long totalSent = 0;
-                int read;
-                while ((read = fis.read(buffer)) != -1) {
-                    dos.write(buffer, 0, read);
-                    totalSent += read;
+            long offset = 0;
+            if (resume) {
+                offset = readFully(socket, Long.BYTES).getLong();
+                if (offset < 0 || offset > fileSize) {
+                    throw new IOException("Сервер вернул некорректное смещение: " + offset);
+                }
+                if (offset > 0) {
+                    System.out.println("Сервер уже получил " + offset + " байт, продолжаем с этого места.");
                 }
-                dos.flush();
+            }
 
-                int status = dis.readByte();
-                if (status == 1) {
-                    System.out.println("Файл успешно передан на сервер.");
+            if (crc32c || sha256 || deflate) {
+                sendBuffered(file, socket, offset);
+            } else {
+                sendFile(file, socket, offset);
+            }
+
+            int status = readFully(socket, 1).get();
+            if (status == STATUS_OK) {
+                System.out.println("Файл успешно передан на сервер.");
+            } else if (status == STATUS_CHECKSUM_MISMATCH) {
+                System.err.println("Контрольная сумма на сервере не совпала, файл повреждён при передаче.");
+            } else {
+                System.err.println("Передача файла завершилась неудачей.");
+            }
+        }
+    }
+
+    /**
+     * Содержимое уходит из файла в сокет ядром (sendfile), без копий через пользовательские буферы.
+     */
+    private void sendFile(FileChannel file, SocketChannel socket, long offset) throws IOException {
+        long position = offset;
+        while (position < fileSize) {
+            long sent = file.transferTo(position, fileSize - position, socket);
+            if (sent == 0 && position >= file.size()) {
+                throw new IOException("Файл укоротился во время передачи");
+            }
+            position += sent;
+        }
+    }
+
+    /**
+     * С контрольной суммой или сжатием содержимое читается в один буфер,
+     * суммируется и отправляется из него же (или сжимается из него) - за один
+     * проход по файлу. Следом идёт трейлер: CRC32C, затем SHA-256 байт файла.
+     */
+    private void sendBuffered(FileChannel file, SocketChannel socket, long offset) throws IOException {
+        CRC32C crc = crc32c ? new CRC32C() : null;
+        MessageDigest digest = null;
+        if (sha256) {
+            try {
+                digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IOException("SHA-256 недоступен", e);
+            }
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect(CHECKSUM_BUFFER_SIZE);
+        Deflater deflater = deflate ? new AdaptiveDeflater() : null;
+        ByteBuffer compressed = deflate ? ByteBuffer.allocateDirect(CHECKSUM_BUFFER_SIZE) : null;
+        try {
+            long position = offset;
+            while (position < fileSize) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), fileSize - position));
+                if (file.read(buffer, position) == -1) {
+                    throw new IOException("Файл укоротился во время передачи");
+                }
+                buffer.flip();
+                position += buffer.remaining();
+                if (crc != null) {
+                    crc.update(buffer);
+                    buffer.rewind();
+                }
+                if (digest != null) {
+                    digest.update(buffer);
+                    buffer.rewind();
+                }
+                if (deflater != null) {
+                    deflater.setInput(buffer);
+                    sendDeflated(deflater, compressed, socket);
                 } else {
-                    System.err.println("Передача файла завершилась неудачей.");
+                    writeFully(socket, buffer);
                 }
+            }
+            if (deflater != null) {
+                deflater.finish();
+                sendDeflated(deflater, compressed, socket);
+            }
+        } finally {
+            if (deflater != null) {
+                deflater.end();
+            }
+        }
+
+        ByteBuffer trailer = ByteBuffer.allocate(Integer.BYTES + 32);
+        if (crc != null) {
+            trailer.putInt((int) crc.getValue());
+        }
+        if (digest != null) {
+            trailer.put(digest.digest());
+        }
+        writeFully(socket, trailer.flip());
+    }
 
+    /**
+     * Отправляет всё, что компрессор выдаёт из поданных ему байт, а после
+     * {@link Deflater#finish()} - до конца сжатого потока.
+     */
+    private static void sendDeflated(Deflater deflater, ByteBuffer compressed, SocketChannel socket) throws IOException {
+        while (!deflater.finished()) {
+            compressed.clear();
+            if (deflater.deflate(compressed) == 0 && deflater.needsInput()) {
+                return;
             }
+            writeFully(socket, compressed.flip());
+        }
+    }
 
-        } catch (IOException e) {
-            System.err.println("Ошибка клиента: " + e.getMessage());
+    static void writeFully(SocketChannel socket, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            socket.write(buffer);
+        }
+    }
+
+    static ByteBuffer readFully(SocketChannel socket, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (socket.read(buffer) == -1) {
+                throw new EOFException("Сервер закрыл соединение");
+            }
         }
+        return buffer.flip();
     }
 }
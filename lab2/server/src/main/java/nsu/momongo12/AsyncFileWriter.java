@@ -0,0 +1,154 @@
+package nsu.momongo12;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.EnumSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Запись содержимого одного файла вне сетевого потока. Куски пишутся по своим
+ * смещениям через {@link AsynchronousFileChannel} в пуле дисковых потоков;
+ * сетевой поток только отдаёт их и следит за объёмом ещё не записанных байт.
+ */
+public class AsyncFileWriter {
+
+    private final AsynchronousFileChannel fileChannel;
+    private final ExecutorService diskExecutor;
+    private final long maxInFlightBytes;
+    private final Runnable progressListener;
+
+    private final AtomicLong inFlightBytes = new AtomicLong();
+    private final AtomicInteger pendingWrites = new AtomicInteger();
+    private volatile Throwable failure;
+    // сетевой поток ждёт завершения записей: приостановлено чтение или всё содержимое принято
+    private volatile boolean waiting;
+
+    private long position;
+
+    /**
+     * Открывает файл и может надолго заблокировать, поэтому вызывается из дискового пула.
+     *
+     * @param progressListener вызывается в дисковом потоке, когда сетевому потоку
+     *                         пора проверить состояние: ожидание, отмеченное
+     *                         {@link #setWaiting(boolean)}, могло закончиться
+     */
+    public AsyncFileWriter(Path path, long startPosition, ExecutorService diskExecutor, long maxInFlightBytes,
+                           Runnable progressListener) throws IOException {
+        // с ненулевого смещения загрузка продолжается: уже принятое начало файла сохраняется
+        EnumSet<StandardOpenOption> options = startPosition > 0
+                ? EnumSet.of(StandardOpenOption.CREATE, StandardOpenOption.WRITE)
+                : EnumSet.of(StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        this.fileChannel = AsynchronousFileChannel.open(path, options, diskExecutor);
+        this.diskExecutor = diskExecutor;
+        this.position = startPosition;
+        this.maxInFlightBytes = maxInFlightBytes;
+        this.progressListener = progressListener;
+    }
+
+    /**
+     * Ставит оставшееся содержимое буфера в запись по следующему смещению.
+     * Буфер переходит во владение записи и возвращается в пул, когда она завершится.
+     */
+    public void write(PooledBuffer data) {
+        ByteBuffer buffer = data.buffer();
+        int length = buffer.remaining();
+        inFlightBytes.addAndGet(length);
+        pendingWrites.incrementAndGet();
+        data.setFileOffset(position - buffer.position());
+        long writePosition = position;
+        position += length;
+        fileChannel.write(buffer, writePosition, data, handler);
+    }
+
+    /**
+     * Выполняет действие в дисковом пуле. Пока оно не закончилось, запись не
+     * считается простаивающей; ошибка действия - ошибка записи файла.
+     * Вызывается, когда предыдущие записи уже завершены, если действию нужны их данные.
+     */
+    public void runOnDisk(DiskAction action) {
+        pendingWrites.incrementAndGet();
+        diskExecutor.execute(() -> {
+            try {
+                action.run();
+            } catch (IOException e) {
+                failure = e;
+            } finally {
+                pendingWrites.decrementAndGet();
+                if (waiting) {
+                    progressListener.run();
+                }
+            }
+        });
+    }
+
+    /**
+     * Сбрасывает уже записанные данные файла на диск. Блокирует, вызывается из дискового пула.
+     */
+    public void force() throws IOException {
+        fileChannel.force(false);
+    }
+
+    public boolean isBacklogFull() {
+        return inFlightBytes.get() >= maxInFlightBytes;
+    }
+
+    public boolean isIdle() {
+        return pendingWrites.get() == 0;
+    }
+
+    public boolean isFailed() {
+        return failure != null;
+    }
+
+    public Throwable getFailure() {
+        return failure;
+    }
+
+    public void setWaiting(boolean waiting) {
+        this.waiting = waiting;
+    }
+
+    public void close() throws IOException {
+        fileChannel.close();
+    }
+
+    private void onWriteDone(PooledBuffer data) {
+        data.release();
+        pendingWrites.decrementAndGet();
+        if (waiting) {
+            progressListener.run();
+        }
+    }
+
+    private final CompletionHandler<Integer, PooledBuffer> handler = new CompletionHandler<>() {
+        @Override
+        public void completed(Integer written, PooledBuffer data) {
+            inFlightBytes.addAndGet(-written);
+            ByteBuffer buffer = data.buffer();
+            // запись может быть частичной: дописываем остаток с нужного смещения
+            if (buffer.hasRemaining()) {
+                fileChannel.write(buffer, data.getFileOffset() + buffer.position(), data, this);
+                return;
+            }
+            onWriteDone(data);
+        }
+
+        @Override
+        public void failed(Throwable exc, PooledBuffer data) {
+            failure = exc;
+            inFlightBytes.addAndGet(-data.buffer().remaining());
+            onWriteDone(data);
+        }
+    };
+
+    @FunctionalInterface
+    public interface DiskAction {
+        void run() throws IOException;
+    }
+}
@@ -0,0 +1,31 @@
+package nsu.momongo12;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Пул прямых буферов чтения одного рабочего потока. Буфер с содержимым файла
+ * возвращает в пул дисковый поток, когда запись завершилась, поэтому очередь
+ * свободных буферов потокобезопасна. Если пул переполнен, лишний буфер просто
+ * отбрасывается.
+ */
+public class BufferPool {
+
+    private final ArrayBlockingQueue<PooledBuffer> free;
+    private final int bufferSize;
+
+    public BufferPool(int bufferSize, int capacity) {
+        this.bufferSize = bufferSize;
+        this.free = new ArrayBlockingQueue<>(capacity);
+    }
+
+    public PooledBuffer acquire() {
+        PooledBuffer buffer = free.poll();
+        return buffer != null ? buffer : new PooledBuffer(this, ByteBuffer.allocateDirect(bufferSize));
+    }
+
+    void release(PooledBuffer buffer) {
+        buffer.buffer().clear();
+        free.offer(buffer);
+    }
+}
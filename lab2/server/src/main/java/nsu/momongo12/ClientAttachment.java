@@ -5,135 +5,739 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
 import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 
 public class ClientAttachment {
     private static final Logger logger = LoggerFactory.getLogger(ClientAttachment.class);
 
-    private enum State { READ_NAME_LENGTH, READ_NAME, READ_SIZE, READ_CONTENT, SEND_CONFIRMATION }
+    /*
+     * Перед длиной имени клиент может прислать маркеры - отрицательные числа,
+     * каждый включает своё расширение протокола. Старые клиенты их не шлют.
+     */
+    /**
+     * Загрузка докачиваемая: после заголовка сервер отвечает long-смещением,
+     * с которого клиенту слать содержимое.
+     */
+    public static final int RESUME_MARKER = -1;
+    /**
+     * После содержимого клиент присылает CRC32C переданных байт файла.
+     */
+    public static final int CRC32C_MARKER = -2;
+    /**
+     * После содержимого (и CRC32C, если он тоже заказан) клиент присылает SHA-256 переданных байт.
+     */
+    public static final int SHA256_MARKER = -3;
+    /**
+     * Только перед первым файлом соединения: сессия. Соединение не закрывается
+     * после файла, клиент шлёт следующие друг за другом, не дожидаясь
+     * подтверждений; они приходят по одному байту на файл в том же порядке.
+     * Докачка в сессии не поддерживается. Сессию завершает закрытие соединения
+     * клиентом между файлами.
+     */
+    public static final int SESSION_MARKER = -4;
+    /**
+     * Содержимое сжато Deflate (без обёртки zlib) одним потоком, конец
+     * которого и есть конец содержимого. Размер файла в заголовке и
+     * контрольные суммы в трейлере - для распакованных байт. Докачка сжатого
+     * файла не поддерживается.
+     */
+    public static final int DEFLATE_MARKER = -5;
+
+    public static final byte STATUS_FAILED = 0;
+    public static final byte STATUS_OK = 1;
+    public static final byte STATUS_CHECKSUM_MISMATCH = 2;
+
+    // сколько принятых файлов сессии может ждать записи на диск и подтверждения
+    private static final int MAX_COMPLETING_FILES = 64;
+
+    // OPEN_FILE - файл открывается в дисковом пуле
+    // DONE - единственный файл соединения принят, дальше протокол ничего не ждёт
+    private enum State { READ_NAME_LENGTH, READ_NAME, READ_SIZE, OPEN_FILE, READ_CONTENT, READ_TRAILER, DONE }
 
     private State state = State.READ_NAME_LENGTH;
     private ByteBuffer intBuffer = ByteBuffer.allocate(4);
     private ByteBuffer longBuffer = ByteBuffer.allocate(8);
+    // имя файла, разрезанное между чтениями; переиспользуется в сессии, предел - длина текущего имени
     private ByteBuffer nameBuffer;
     private String fileName;
+    private Path filePath;
     private long fileSize;
     private long bytesReceived = 0;
-    private FileChannel fileChannel;
-    private Path filePath;
+    private Runnable writeProgressListener;
+    private boolean resumable;
+    private long lastCheckpoint;
+    private boolean checkpointPending;
+    private UploadChecksum checksum = new UploadChecksum();
+    private ByteBuffer trailerBuffer;
+    private boolean compressed;
+    // распаковщик соединения, создаётся при первом сжатом файле и переиспользуется
+    private Inflater inflater;
+    // байты, разбор которых ждёт открытия файла или, для сжатых, пока освободится очередь записи
+    private PooledBuffer pendingInput;
+    // файл, открытый дисковым пулом, пока его не забрал сетевой поток
+    private final AtomicReference<AsyncFileWriter> openedWriter = new AtomicReference<>();
+    // смещение докачки, прочитанное вместе с открытием; видно сетевому потоку, когда он забрал файл
+    private volatile long openedOffset;
+    // каталоги, уже созданные в сессии: файлы дерева обычно идут подряд из одного каталога
+    private final Set<Path> createdDirectories = ConcurrentHashMap.newKeySet();
+    private volatile IOException openFailure;
+    private volatile boolean closed;
+    // принимаемый файл и принятые, ждущие записи и подтверждения, в порядке прихода
+    private FileUpload upload;
+    private final ArrayDeque<FileUpload> completing = new ArrayDeque<>();
+    private boolean session;
+    private long filesReceived;
+    private volatile boolean finished;
+    private boolean inputShutdown;
+    // ответы клиенту, ещё не ушедшие в сокет: смещение докачки и подтверждения файлов
+    private final ByteBuffer output = ByteBuffer.allocate(Long.BYTES + MAX_COMPLETING_FILES).flip();
 
     private final AtomicLong totalBytes = new AtomicLong(0);
     private final AtomicLong bytesSinceLastReport = new AtomicLong(0);
     private final long startTime;
     private long lastReportTime;
 
+    private final SocketChannel client;
     private final SocketAddress clientAddress;
 
     private final int maxFileNameLength;
     private final long maxFileSize;
     private final int reportIntervalSeconds;
-    private boolean fileSizeVerified;
+    private final long maxInFlightBytes;
+    private final long checkpointIntervalBytes;
+    private final ExecutorService diskExecutor;
+    private final BufferPool contentPool;
 
-    public ClientAttachment(SocketChannel client, Config config) throws IOException {
+    /**
+     * @param contentPool пул, в буферы которого распаковывается сжатое содержимое
+     */
+    public ClientAttachment(SocketChannel client, Config config, ExecutorService diskExecutor,
+                            BufferPool contentPool) throws IOException {
         this.startTime = System.currentTimeMillis();
         this.lastReportTime = this.startTime;
+        this.client = client;
         this.clientAddress = client.getRemoteAddress();
         this.maxFileNameLength = config.getMaxFileNameLength();
         this.maxFileSize = config.getMaxFileSize();
         this.reportIntervalSeconds = config.getReportIntervalSeconds();
-        this.fileSizeVerified = false;
+        this.maxInFlightBytes = config.getMaxInFlightBytes();
+        this.checkpointIntervalBytes = config.getCheckpointIntervalBytes();
+        this.diskExecutor = diskExecutor;
+        this.contentPool = contentPool;
+    }
+
+    /**
+     * Вызывается в дисковом потоке, когда сетевому потоку пора снова
+     * проверить {@link #completeWrites()} и {@link #canRead()}.
+     */
+    public void setWriteProgressListener(Runnable writeProgressListener) {
+        this.writeProgressListener = writeProgressListener;
     }
 
-    public void processData(ByteBuffer buffer, Path uploadDir) throws IOException {
+    /**
+     * Разбирает прочитанные из сокета данные. Буфер переходит во владение:
+     * содержимое файла уходит из него на запись на диск, остальное
+     * возвращается в пул.
+     */
+    public void processData(PooledBuffer data, Path uploadDir) throws IOException {
+        PooledBuffer current = data;
+        try {
+            while (current != null) {
+                current = parse(current, uploadDir);
+            }
+        } finally {
+            if (current != null) {
+                current.release();
+            }
+        }
+    }
+
+    /**
+     * @return буфер с байтами, пришедшими вслед за содержимым файла, если этот
+     *         буфер ушёл на запись; null, если разобран целиком и возвращён в пул
+     */
+    private PooledBuffer parse(PooledBuffer data, Path uploadDir) throws IOException {
+        ByteBuffer buffer = data.buffer();
         while (buffer.hasRemaining()) {
             switch (state) {
                 case READ_NAME_LENGTH:
-                    readToBuffer(buffer, intBuffer);
-                    if (!intBuffer.hasRemaining()) {
-                        intBuffer.flip();
-                        int nameLength = intBuffer.getInt();
-                        intBuffer.clear();
-                        if (nameLength <= 0 || nameLength > maxFileNameLength) {
-                            throw new IOException("Invalid file name length: " + nameLength);
+                    // поле целиком в буфере - читаем прямо из него, иначе копим по частям
+                    if (intBuffer.position() == 0 && buffer.remaining() >= Integer.BYTES) {
+                        onNameLength(buffer.getInt());
+                    } else {
+                        readToBuffer(buffer, intBuffer);
+                        if (!intBuffer.hasRemaining()) {
+                            intBuffer.flip();
+                            int nameLength = intBuffer.getInt();
+                            intBuffer.clear();
+                            onNameLength(nameLength);
                         }
-                        nameBuffer = ByteBuffer.allocate(nameLength);
-                        state = State.READ_NAME;
                     }
                     break;
                 case READ_NAME:
-                    readToBuffer(buffer, nameBuffer);
-                    if (!nameBuffer.hasRemaining()) {
-                        nameBuffer.flip();
-                        byte[] nameBytes = new byte[nameBuffer.remaining()];
-                        nameBuffer.get(nameBytes);
-                        fileName = new String(nameBytes, "UTF-8");
-                        Path tempPath = uploadDir.resolve(fileName).normalize();
-                        if (!tempPath.startsWith(uploadDir)) {
-                            throw new IOException("Attempt to write outside uploads directory");
+                    // имя целиком в буфере - декодируем на месте, копим только разрезанное
+                    if (nameBuffer.position() == 0 && buffer.remaining() >= nameBuffer.limit()) {
+                        onName(decodeName(buffer), uploadDir);
+                    } else {
+                        readToBuffer(buffer, nameBuffer);
+                        if (!nameBuffer.hasRemaining()) {
+                            onName(decodeName(nameBuffer.flip()), uploadDir);
                         }
-                        filePath = tempPath;
-                        state = State.READ_SIZE;
                     }
                     break;
                 case READ_SIZE:
-                    readToBuffer(buffer, longBuffer);
-                    if (!longBuffer.hasRemaining()) {
-                        longBuffer.flip();
-                        fileSize = longBuffer.getLong();
-                        longBuffer.clear();
-                        if (fileSize < 0 || fileSize > maxFileSize) {
-                            throw new IOException("Invalid file size: " + fileSize);
+                    if (longBuffer.position() == 0 && buffer.remaining() >= Long.BYTES) {
+                        onFileSize(buffer.getLong());
+                    } else {
+                        readToBuffer(buffer, longBuffer);
+                        if (!longBuffer.hasRemaining()) {
+                            longBuffer.flip();
+                            long size = longBuffer.getLong();
+                            longBuffer.clear();
+                            onFileSize(size);
                         }
-                        fileChannel = FileChannel.open(filePath, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
-                        state = State.READ_CONTENT;
                     }
                     break;
+                case OPEN_FILE:
+                    pendingInput = data;
+                    return null;
                 case READ_CONTENT:
+                    if (compressed) {
+                        if (!inflateContent(buffer)) {
+                            pendingInput = data;
+                            return null;
+                        }
+                        break;
+                    }
                     long bytesToRead = fileSize - bytesReceived;
                     int bytesAvailable = buffer.remaining();
                     int bytesThisRound = (int) Math.min(bytesAvailable, bytesToRead);
-                    ByteBuffer slice = buffer.slice();
-                    slice.limit(bytesThisRound);
-                    fileChannel.write(slice);
-                    buffer.position(buffer.position() + bytesThisRound);
                     bytesReceived += bytesThisRound;
                     totalBytes.addAndGet(bytesThisRound);
                     bytesSinceLastReport.addAndGet(bytesThisRound);
+                    PooledBuffer rest = writeContent(data, bytesThisRound);
                     if (bytesReceived == fileSize) {
-                        fileSizeVerified = true;
-                        fileChannel.close();
-                        state = State.SEND_CONFIRMATION;
+                        onContentReceived();
+                    } else if (resumable && bytesReceived - lastCheckpoint >= checkpointIntervalBytes) {
+                        checkpointPending = true;
+                    }
+                    return rest;
+                case READ_TRAILER:
+                    readToBuffer(buffer, trailerBuffer);
+                    if (!trailerBuffer.hasRemaining()) {
+                        onTrailer();
                     }
                     break;
-                case SEND_CONFIRMATION:
+                case DONE:
+                    // после содержимого файла протокол ничего не ждёт
+                    data.release();
+                    return null;
+            }
+        }
+        data.release();
+        return null;
+    }
+
+    /**
+     * Отдаёт на запись содержимое с текущей позиции буфера. Если за ним в том же
+     * буфере пришли следующие байты протокола, они переносятся в новый буфер из
+     * того же пула: буфер, отданный на запись, здесь больше не трогается.
+     */
+    private PooledBuffer writeContent(PooledBuffer data, int length) {
+        ByteBuffer buffer = data.buffer();
+        int contentEnd = buffer.position() + length;
+        PooledBuffer rest = null;
+        if (buffer.limit() > contentEnd) {
+            rest = data.pool().acquire();
+            int restLength = buffer.limit() - contentEnd;
+            rest.buffer().put(0, buffer, contentEnd, restLength).limit(restLength);
+        }
+        buffer.limit(contentEnd);
+        checksum.update(buffer);
+        upload.getWriter().write(data);
+        return rest;
+    }
+
+    /**
+     * Распаковывает сжатые байты с текущей позиции буфера в буферы из пула
+     * содержимого и отдаёт их на запись. Позиция буфера сдвигается на
+     * прочитанное распаковщиком, после конца сжатого потока в нём могут
+     * остаться следующие байты протокола.
+     *
+     * @return false, если очередь записи заполнена и распаковка остатка буфера отложена
+     */
+    private boolean inflateContent(ByteBuffer buffer) throws IOException {
+        AsyncFileWriter writer = upload.getWriter();
+        inflater.setInput(buffer);
+        while (!inflater.finished()) {
+            if (writer.isBacklogFull()) {
+                writer.setWaiting(true);
+                // запись могла завершиться раньше, чем дисковый поток увидел ожидание
+                if (writer.isBacklogFull()) {
+                    return false;
+                }
+            }
+            PooledBuffer out = contentPool.acquire();
+            ByteBuffer outBuffer = out.buffer();
+            // хотя бы байт места, даже если файл уже получен целиком: так видно, что поток длиннее заявленного
+            outBuffer.limit((int) Math.max(1, Math.min(outBuffer.capacity(), fileSize - bytesReceived)));
+            int produced;
+            try {
+                produced = inflater.inflate(outBuffer);
+            } catch (DataFormatException e) {
+                out.release();
+                throw new IOException("Corrupted compressed content: " + e.getMessage(), e);
+            }
+            if (produced == 0) {
+                out.release();
+                if (inflater.finished()) {
                     break;
+                }
+                if (inflater.needsInput()) {
+                    return true;
+                }
+                throw new IOException("Corrupted compressed content");
             }
+            if (bytesReceived + produced > fileSize) {
+                out.release();
+                throw new IOException("Decompressed content exceeds file size: " + fileSize);
+            }
+            bytesReceived += produced;
+            totalBytes.addAndGet(produced);
+            bytesSinceLastReport.addAndGet(produced);
+            outBuffer.flip();
+            checksum.update(outBuffer);
+            writer.write(out);
+        }
+        if (bytesReceived != fileSize) {
+            throw new IOException("Decompressed content is shorter than file size: " + bytesReceived + " of " + fileSize);
         }
+        onContentReceived();
+        return true;
     }
 
+    /**
+     * Продолжает разбор, отложенный до открытия файла или, для сжатых байт,
+     * до освобождения очереди записи, если дождались, и разбирает то, что
+     * пришло за ними.
+     */
+    public void processPendingInput(Path uploadDir) throws IOException {
+        if (state == State.OPEN_FILE && !onFileOpened()) {
+            return;
+        }
+        if (pendingInput == null || state == State.READ_CONTENT && upload.getWriter().isBacklogFull()) {
+            return;
+        }
+        PooledBuffer data = pendingInput;
+        pendingInput = null;
+        processData(data, uploadDir);
+    }
+
+    private void onContentReceived() {
+        if (checksum.isEnabled()) {
+            trailerBuffer = ByteBuffer.allocate(checksum.getTrailerLength());
+            state = State.READ_TRAILER;
+        } else {
+            onFileReceived();
+        }
+    }
+
+    private void onTrailer() {
+        trailerBuffer.flip();
+        boolean checksumMismatch = !checksum.matches(trailerBuffer);
+        if (checksumMismatch) {
+            logger.error("Контрольная сумма файла {} не совпала", fileName);
+        }
+        upload.setChecksumMismatch(checksumMismatch);
+        onFileReceived();
+    }
+
+    /**
+     * Файл принят целиком и ждёт своих записей на диск. В сессии сразу
+     * разбирается заголовок следующего файла.
+     */
+    private void onFileReceived() {
+        completing.add(upload);
+        upload = null;
+        compressed = false;
+        filesReceived++;
+        if (!session) {
+            state = State.DONE;
+            return;
+        }
+        state = State.READ_NAME_LENGTH;
+        fileName = null;
+        filePath = null;
+        fileSize = 0;
+        bytesReceived = 0;
+        checksum = new UploadChecksum();
+        trailerBuffer = null;
+    }
+
+    private void onNameLength(int nameLength) throws IOException {
+        if (nameLength < 0) {
+            // маркер расширения, за ним следует следующий маркер или настоящая длина имени
+            onMarker(nameLength);
+            return;
+        }
+        if (nameLength == 0 || nameLength > maxFileNameLength) {
+            throw new IOException("Invalid file name length: " + nameLength);
+        }
+        if (nameBuffer == null || nameBuffer.capacity() < nameLength) {
+            nameBuffer = ByteBuffer.allocate(nameLength);
+        }
+        nameBuffer.clear().limit(nameLength);
+        state = State.READ_NAME;
+    }
+
+    private void onMarker(int marker) throws IOException {
+        boolean accepted;
+        switch (marker) {
+            case RESUME_MARKER:
+                // смещение докачки нельзя получить, не останавливая конвейер сессии
+                accepted = !resumable && !session && !compressed;
+                resumable = true;
+                break;
+            case SESSION_MARKER:
+                accepted = !session && !resumable && filesReceived == 0 && !checksum.isEnabled()
+                        && !compressed;
+                session = true;
+                // однобайтовые подтверждения не должны ждать, пока клиент подтвердит предыдущие
+                client.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                break;
+            case CRC32C_MARKER:
+                accepted = checksum.enableCrc32c();
+                break;
+            case SHA256_MARKER:
+                accepted = checksum.enableSha256();
+                break;
+            case DEFLATE_MARKER:
+                // докачка считается в байтах файла, а сжатый поток с середины не продолжить
+                accepted = !compressed && !resumable;
+                compressed = true;
+                break;
+            default:
+                accepted = false;
+        }
+        if (!accepted) {
+            throw new IOException("Invalid header marker: " + marker);
+        }
+    }
+
+    /**
+     * Декодирует имя длиной {@code nameBuffer.limit()} с позиции {@code source}.
+     * Байты кучи декодируются на месте, прямой буфер сначала копируется в массив
+     * {@code nameBuffer}.
+     */
+    private String decodeName(ByteBuffer source) {
+        int length = nameBuffer.limit();
+        byte[] bytes;
+        int offset;
+        if (source.hasArray()) {
+            bytes = source.array();
+            offset = source.arrayOffset() + source.position();
+        } else {
+            bytes = nameBuffer.array();
+            offset = 0;
+            source.get(source.position(), bytes, 0, length);
+        }
+        source.position(source.position() + length);
+        return new String(bytes, offset, length, StandardCharsets.UTF_8);
+    }
+
+    private void onName(String name, Path uploadDir) throws IOException {
+        fileName = name;
+        Path tempPath = uploadDir.resolve(fileName).normalize();
+        if (!tempPath.startsWith(uploadDir)) {
+            throw new IOException("Attempt to write outside uploads directory");
+        }
+        filePath = tempPath;
+        state = State.READ_SIZE;
+    }
+
+    private void onFileSize(long size) throws IOException {
+        if (size < 0 || size > maxFileSize) {
+            throw new IOException("Invalid file size: " + size);
+        }
+        fileSize = size;
+        openFile(filePath, UploadState.stateFileFor(filePath), size, resumable);
+    }
+
+    /**
+     * Открытие файла с созданием и усечением, как и создание каталогов,
+     * чтение или удаление состояния докачки, может надолго занять файловую систему,
+     * поэтому идёт в дисковом пуле, а о результате сетевой поток узнаёт через
+     * слушатель прогресса. До тех пор из сокета не читается, а байты, уже
+     * прочитанные за заголовком, ждут в {@link #pendingInput}.
+     */
+    private void openFile(Path path, Path stateFile, long size, boolean resume) {
+        state = State.OPEN_FILE;
+        boolean createDirectories = session;
+        diskExecutor.execute(() -> {
+            try {
+                Path directory = path.getParent();
+                // в сессии загружается дерево каталогов: имя может содержать путь
+                if (createDirectories && !createdDirectories.contains(directory)) {
+                    Files.createDirectories(directory);
+                    createdDirectories.add(directory);
+                }
+                long offset = 0;
+                if (resume) {
+                    offset = UploadState.readCommittedOffset(stateFile, path, size);
+                } else {
+                    // обычная загрузка перезаписывает файл целиком, прежнее состояние докачки недействительно
+                    Files.deleteIfExists(stateFile);
+                }
+                AsyncFileWriter writer = new AsyncFileWriter(path, offset, diskExecutor, maxInFlightBytes,
+                        writeProgressListener);
+                openedOffset = offset;
+                openedWriter.set(writer);
+                // соединение закрылось, пока файл открывался: забрать его уже некому
+                if (closed && openedWriter.getAndSet(null) != null) {
+                    writer.close();
+                }
+            } catch (IOException e) {
+                openFailure = e;
+            }
+            writeProgressListener.run();
+        });
+    }
+
+    /**
+     * @return false, если файл ещё открывается
+     */
+    private boolean onFileOpened() throws IOException {
+        if (openFailure != null) {
+            throw new IOException("Failed to open file " + fileName + ": " + openFailure.getMessage(), openFailure);
+        }
+        AsyncFileWriter writer = openedWriter.getAndSet(null);
+        if (writer == null) {
+            return false;
+        }
+        upload = new FileUpload(fileName, filePath, UploadState.stateFileFor(filePath), writer, resumable);
+        long offset = openedOffset;
+        if (resumable) {
+            sendResumeOffset(offset);
+            if (offset > 0) {
+                logger.info("Загрузка файла {} продолжается с {} байт", fileName, offset);
+            }
+        }
+        bytesReceived = offset;
+        lastCheckpoint = offset;
+        if (compressed) {
+            // даже пустой файл приходит сжатым потоком: его конец надо дочитать
+            if (inflater == null) {
+                inflater = new Inflater(true);
+            } else {
+                inflater.reset();
+            }
+            state = State.READ_CONTENT;
+        } else if (bytesReceived < fileSize) {
+            state = State.READ_CONTENT;
+        } else {
+            onContentReceived();
+        }
+        return true;
+    }
+
+    private void sendResumeOffset(long offset) {
+        // первый ответ соединения: в буфере ответов заведомо есть место
+        output.compact().putLong(offset).flip();
+    }
+
+    /**
+     * Чекпоинт докачиваемой загрузки: когда все отданные записи завершены,
+     * дисковый пул сбрасывает файл на диск и запоминает принятое смещение.
+     *
+     * @return false, если записи ещё идут и чекпоинт отложен до их завершения
+     */
+    private boolean checkpoint() {
+        AsyncFileWriter writer = upload.getWriter();
+        writer.setWaiting(true);
+        if (!writer.isIdle()) {
+            return false;
+        }
+        long committedOffset = bytesReceived;
+        long expectedSize = fileSize;
+        Path stateFile = upload.getStateFile();
+        writer.runOnDisk(() -> {
+            writer.force();
+            UploadState.write(stateFile, expectedSize, committedOffset);
+        });
+        lastCheckpoint = committedOffset;
+        checkpointPending = false;
+        return true;
+    }
+
+    /**
+     * Переносит в target столько байт из source, сколько влезает, одним блочным копированием.
+     */
     private void readToBuffer(ByteBuffer source, ByteBuffer target) {
-        int remaining = target.remaining();
-        int toRead = Math.min(source.remaining(), remaining);
-        for (int i = 0; i < toRead; i++) {
-            target.put(source.get());
+        int toRead = Math.min(source.remaining(), target.remaining());
+        target.put(target.position(), source, source.position(), toRead);
+        target.position(target.position() + toRead);
+        source.position(source.position() + toRead);
+    }
+
+    /**
+     * Готово ли подтверждение для первого из принятых файлов: его записи на
+     * диск завершились и файл закрыт.
+     *
+     * @return true, если можно отправлять подтверждение
+     */
+    public boolean completeWrites() throws IOException {
+        FileUpload head = completing.peek();
+        // пока клиент не читает подтверждения, следующие не копятся сверх буфера ответов
+        return head != null && output.remaining() < output.capacity() && head.completeWrites();
+    }
+
+    /**
+     * Подтверждение первого из принятых файлов поставлено в очередь ответов,
+     * откуда рабочий поток отправит его, когда сокет примет.
+     */
+    public void confirmationQueued() {
+        FileUpload upload = completing.poll();
+        output.compact().put(upload.getConfirmationStatus()).flip();
+        if (!session) {
+            finished = true;
+        }
+    }
+
+    /**
+     * Ответы клиенту, ещё не ушедшие в сокет: от позиции до предела.
+     */
+    public ByteBuffer getOutput() {
+        return output;
+    }
+
+    /**
+     * Все ответы отправлены, и протокол больше ничего не ждёт: единственный
+     * файл подтверждён или клиент закрыл свою сторону сессии.
+     */
+    public boolean isComplete() {
+        return !output.hasRemaining() && (finished || isDrained());
+    }
+
+    /**
+     * Клиент закрыл свою сторону соединения, например завершив сессию сразу
+     * после последнего файла. Читать больше нечего, но подтверждения уже
+     * принятых файлов ещё нужно отправить.
+     *
+     * @return true, если соединение остаётся открытым до отправки подтверждений
+     */
+    public boolean onInputShutdown() {
+        inputShutdown = true;
+        return !completing.isEmpty() || output.hasRemaining();
+    }
+
+    /**
+     * Клиент закрыл свою сторону соединения, и все подтверждения поставлены в очередь ответов.
+     */
+    private boolean isDrained() {
+        return inputShutdown && completing.isEmpty();
+    }
+
+    /**
+     * Можно ли читать из сокета дальше: пока очередь записи на диск полна,
+     * чтение приостанавливается, дисковый поток сообщит, когда она освободится.
+     */
+    public boolean canRead() {
+        if (inputShutdown) {
+            return false;
+        }
+        if (state == State.OPEN_FILE) {
+            // дальше читается, когда дисковый пул откроет файл
+            return false;
+        }
+        if (completing.size() >= MAX_COMPLETING_FILES || output.remaining() == output.capacity()) {
+            // дальше сессия читается, когда подтвердится первый из принятых файлов
+            return false;
+        }
+        if (pendingInput != null) {
+            // сначала распаковывается уже прочитанное
+            return false;
+        }
+        if (state != State.READ_CONTENT) {
+            return true;
         }
+        if (checkpointPending && !checkpoint()) {
+            return false;
+        }
+        AsyncFileWriter writer = upload.getWriter();
+        if (!writer.isBacklogFull()) {
+            writer.setWaiting(false);
+            return true;
+        }
+        writer.setWaiting(true);
+        // запись могла завершиться раньше, чем дисковый поток увидел ожидание
+        if (!writer.isBacklogFull()) {
+            writer.setWaiting(false);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Идёт приём содержимого файла: рабочий поток читает его крупными буферами.
+     */
+    public boolean isReceivingContent() {
+        return state == State.READ_CONTENT;
+    }
+
+    /**
+     * Сколько байт содержимого ещё придёт из сокета; длина сжатого содержимого заранее неизвестна.
+     */
+    public long getRemainingContent() {
+        return compressed ? Long.MAX_VALUE : fileSize - bytesReceived;
     }
 
     public boolean isFinished() {
-        return state == State.SEND_CONFIRMATION;
+        return finished;
     }
 
-    public String getFileName() {
-        return fileName;
+    public void close() {
+        closed = true;
+        AsyncFileWriter opened = openedWriter.getAndSet(null);
+        if (opened != null) {
+            try {
+                opened.close();
+            } catch (IOException e) {
+                logger.error("Ошибка при закрытии файла {}: {}", fileName, e.getMessage());
+            }
+        }
+        if (pendingInput != null) {
+            pendingInput.release();
+            pendingInput = null;
+        }
+        if (inflater != null) {
+            inflater.end();
+        }
+        if (upload != null) {
+            upload.abort();
+        }
+        for (FileUpload received : completing) {
+            received.abort();
+        }
     }
 
-    public boolean verifyFileSize() throws IOException {
-        return fileSizeVerified;
+    /**
+     * Первый из принятых файлов, по которому ждётся подтверждение.
+     */
+    public FileUpload getCompletedUpload() {
+        return completing.peek();
     }
 
     public void calculateAndReportSpeed(long currentTime) {
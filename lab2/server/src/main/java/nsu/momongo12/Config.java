@@ -4,40 +4,112 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.util.Properties;
 
+/**
+ * Настройки сервера. Значения разбираются один раз при загрузке: геттеры
+ * вызываются и на горячем пути, поэтому строки из {@link Properties} там не парсятся.
+ */
 public class Config {
-    private final Properties properties = new Properties();
+    private final int serverPort;
+    private final int reportIntervalSeconds;
+    private final int bufferSize;
+    private final int bufferPoolSize;
+    private final int ingestBufferSize;
+    private final int ingestBufferPoolSize;
+    private final String uploadDirectory;
+    private final int maxFileNameLength;
+    private final long maxFileSize;
+    private final int diskWriterThreads;
+    private final long maxInFlightBytes;
+    private final long checkpointIntervalBytes;
+    private final int workerCount;
 
     public Config(String configFileName) throws IOException {
+        Properties properties = new Properties();
         try (InputStream input = getClass().getClassLoader().getResourceAsStream(configFileName)) {
             if (input == null) {
                 throw new IOException("Файл конфигурации " + configFileName + " не найден в classpath.");
             }
             properties.load(input);
         }
+
+        serverPort = Integer.parseInt(properties.getProperty("server.port", "12345"));
+        reportIntervalSeconds = Integer.parseInt(properties.getProperty("report.interval.seconds", "3"));
+        bufferSize = Integer.parseInt(properties.getProperty("buffer.size", "8192"));
+        bufferPoolSize = Integer.parseInt(properties.getProperty("buffer.pool.size", "256"));
+        ingestBufferSize = Integer.parseInt(properties.getProperty("ingest.buffer.size", "262144"));
+        ingestBufferPoolSize = Integer.parseInt(properties.getProperty("ingest.buffer.pool.size", "32"));
+        uploadDirectory = properties.getProperty("upload.directory", "uploads");
+        maxFileNameLength = Integer.parseInt(properties.getProperty("max.file.name.length", "4096"));
+        maxFileSize = Long.parseLong(properties.getProperty("max.file.size", "1099511627776"));
+        diskWriterThreads = Integer.parseInt(properties.getProperty("disk.writer.threads", "4"));
+        maxInFlightBytes = Long.parseLong(properties.getProperty("disk.max.inflight.bytes", "1048576"));
+        checkpointIntervalBytes = Long.parseLong(properties.getProperty("upload.checkpoint.interval.bytes", "67108864"));
+        int configuredWorkers = Integer.parseInt(properties.getProperty("worker.count", "0"));
+        // 0 - по числу доступных процессоров
+        workerCount = configuredWorkers > 0 ? configuredWorkers : Runtime.getRuntime().availableProcessors();
     }
 
     public int getServerPort() {
-        return Integer.parseInt(properties.getProperty("server.port", "12345"));
+        return serverPort;
     }
 
     public int getReportIntervalSeconds() {
-        return Integer.parseInt(properties.getProperty("report.interval.seconds", "3"));
+        return reportIntervalSeconds;
     }
 
     public int getBufferSize() {
-        return Integer.parseInt(properties.getProperty("buffer.size", "8192"));
+        return bufferSize;
+    }
+
+    /**
+     * Сколько свободных буферов чтения хранит пул одного рабочего потока.
+     */
+    public int getBufferPoolSize() {
+        return bufferPoolSize;
+    }
+
+    /**
+     * Размер буфера, которым читается содержимое файла после заголовка.
+     */
+    public int getIngestBufferSize() {
+        return ingestBufferSize;
+    }
+
+    public int getIngestBufferPoolSize() {
+        return ingestBufferPoolSize;
     }
 
     public String getUploadDirectory() {
-        return properties.getProperty("upload.directory", "uploads");
+        return uploadDirectory;
     }
 
     public int getMaxFileNameLength() {
-        return Integer.parseInt(properties.getProperty("max.file.name.length", "4096"));
+        return maxFileNameLength;
     }
 
     public long getMaxFileSize() {
-        return Long.parseLong(properties.getProperty("max.file.size", "1099511627776"));
+        return maxFileSize;
     }
-}
 
+    public int getDiskWriterThreads() {
+        return diskWriterThreads;
+    }
+
+    /**
+     * Сколько байт одного клиента может ждать записи на диск, прежде чем чтение из его сокета приостановится.
+     */
+    public long getMaxInFlightBytes() {
+        return maxInFlightBytes;
+    }
+
+    /**
+     * Через сколько принятых байт докачиваемая загрузка сбрасывает файл на диск и обновляет файл состояния.
+     */
+    public long getCheckpointIntervalBytes() {
+        return checkpointIntervalBytes;
+    }
+
+    public int getWorkerCount() {
+        return workerCount;
+    }
+}
@@ -0,0 +1,118 @@
+package nsu.momongo12;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Один загружаемый файл: от заголовка до подтверждения. После приёма
+ * содержимого ждёт завершения своих записей на диск; в сессии таких файлов
+ * может быть несколько, подтверждаются они по порядку.
+ */
+public class FileUpload {
+
+    private static final Logger logger = LoggerFactory.getLogger(FileUpload.class);
+
+    private final String fileName;
+    private final Path filePath;
+    private final Path stateFile;
+    private final AsyncFileWriter writer;
+    private final boolean resumable;
+
+    private boolean checksumMismatch;
+    private boolean syncing;
+    private boolean completed;
+    private byte confirmationStatus = ClientAttachment.STATUS_FAILED;
+
+    public FileUpload(String fileName, Path filePath, Path stateFile, AsyncFileWriter writer, boolean resumable) {
+        this.fileName = fileName;
+        this.filePath = filePath;
+        this.stateFile = stateFile;
+        this.writer = writer;
+        this.resumable = resumable;
+    }
+
+    public AsyncFileWriter getWriter() {
+        return writer;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public Path getStateFile() {
+        return stateFile;
+    }
+
+    public void setChecksumMismatch(boolean checksumMismatch) {
+        this.checksumMismatch = checksumMismatch;
+    }
+
+    /**
+     * Вызывается, когда содержимое принято целиком. Если все записи на диск
+     * завершились, закрывает файл и определяет байт подтверждения.
+     *
+     * @return true, если можно отправлять подтверждение
+     */
+    public boolean completeWrites() throws IOException {
+        if (completed) {
+            return true;
+        }
+        writer.setWaiting(true);
+        if (!writer.isIdle()) {
+            return false;
+        }
+        if (checksumMismatch && !syncing) {
+            // повреждённый файл не оставляем, и докачивать его тоже нельзя
+            syncing = true;
+            writer.runOnDisk(() -> {
+                Files.deleteIfExists(filePath);
+                Files.deleteIfExists(stateFile);
+            });
+            return false;
+        }
+        if (resumable && !syncing && !writer.isFailed()) {
+            // подтверждение докачиваемой загрузки - только для данных на диске; состояние больше не нужно
+            syncing = true;
+            writer.runOnDisk(() -> {
+                writer.force();
+                Files.deleteIfExists(stateFile);
+            });
+            return false;
+        }
+        writer.close();
+        if (writer.isFailed()) {
+            logger.error("Ошибка записи файла {}: {}", fileName, writer.getFailure().getMessage());
+            confirmationStatus = ClientAttachment.STATUS_FAILED;
+        } else {
+            confirmationStatus = checksumMismatch ? ClientAttachment.STATUS_CHECKSUM_MISMATCH : ClientAttachment.STATUS_OK;
+        }
+        completed = true;
+        return true;
+    }
+
+    /**
+     * Байт подтверждения для клиента: {@link ClientAttachment#STATUS_OK},
+     * {@link ClientAttachment#STATUS_FAILED} или {@link ClientAttachment#STATUS_CHECKSUM_MISMATCH}.
+     */
+    public byte getConfirmationStatus() {
+        return confirmationStatus;
+    }
+
+    /**
+     * Соединение закрылось раньше подтверждения: файл закрывается, недописанные записи отменяются.
+     */
+    public void abort() {
+        if (completed) {
+            return;
+        }
+        try {
+            writer.close();
+        } catch (IOException e) {
+            logger.error("Ошибка при закрытии файла {}: {}", fileName, e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package nsu.momongo12;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Буфер из {@link BufferPool}. Владелец у буфера один: рабочий поток, пока
+ * разбирает прочитанное, либо {@link AsyncFileWriter}, которому буфер отдан на запись.
+ */
+public class PooledBuffer {
+
+    private final BufferPool pool;
+    private final ByteBuffer buffer;
+    // смещение в файле, соответствующее нулевому индексу буфера, пока идёт запись
+    private long fileOffset;
+
+    PooledBuffer(BufferPool pool, ByteBuffer buffer) {
+        this.pool = pool;
+        this.buffer = buffer;
+    }
+
+    public BufferPool pool() {
+        return pool;
+    }
+
+    public ByteBuffer buffer() {
+        return buffer;
+    }
+
+    long getFileOffset() {
+        return fileOffset;
+    }
+
+    void setFileOffset(long fileOffset) {
+        this.fileOffset = fileOffset;
+    }
+
+    public void release() {
+        pool.release(this);
+    }
+}
@@ -5,7 +5,6 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.nio.ByteBuffer;
 import java.nio.channels.*;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -13,6 +12,7 @@ import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class Server {
 
@@ -20,10 +20,18 @@ public class Server {
 
     private final Map<SocketChannel, ClientAttachment> clients = new ConcurrentHashMap<>();
     private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    private final ExecutorService diskExecutor;
     private final Config config;
+    private int nextWorker;
 
     public Server(Config config) {
         this.config = config;
+        AtomicInteger threadCounter = new AtomicInteger();
+        this.diskExecutor = Executors.newFixedThreadPool(config.getDiskWriterThreads(), runnable -> {
+            Thread thread = new Thread(runnable, "disk-writer-" + threadCounter.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
     }
 
     public void start() throws IOException {
@@ -35,12 +43,18 @@ public class Server {
             logger.info("Директория для загрузок уже существует: {}", config.getUploadDirectory());
         }
 
+        Worker[] workers = new Worker[config.getWorkerCount()];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Worker(i, config, uploadPath, clients, diskExecutor);
+            workers[i].start();
+        }
+
         Selector selector = Selector.open();
         ServerSocketChannel serverChannel = ServerSocketChannel.open();
         serverChannel.bind(new InetSocketAddress(config.getServerPort()));
         serverChannel.configureBlocking(false);
         serverChannel.register(selector, SelectionKey.OP_ACCEPT);
-        logger.info("Сервер NIO запущен и слушает порт {}", config.getServerPort());
+        logger.info("Сервер NIO запущен и слушает порт {}, рабочих потоков: {}", config.getServerPort(), workers.length);
 
         scheduler.scheduleAtFixedRate(this::reportSpeeds, config.getReportIntervalSeconds(), config.getReportIntervalSeconds(), TimeUnit.SECONDS);
 
@@ -56,80 +70,23 @@ public class Server {
                     iter.remove();
 
                     if (key.isAcceptable()) {
-                        register(selector, serverChannel);
-                    }
-
-                    if (key.isReadable()) {
-                        handleRead(key, uploadPath);
+                        accept(serverChannel, workers);
                     }
                 }
             }
         } finally {
-            shutdown(selector, serverChannel);
+            shutdown(selector, serverChannel, workers);
         }
     }
 
-    private void register(Selector selector, ServerSocketChannel serverChannel) throws IOException {
-        SocketChannel client = serverChannel.accept();
-        if (client == null) {
-            return;
-        }
-        client.configureBlocking(false);
-        SelectionKey key = client.register(selector, SelectionKey.OP_READ);
-        ClientAttachment attachment = new ClientAttachment(client, config);
-        key.attach(attachment);
-        clients.put(client, attachment);
-        logger.info("Подключен клиент: {}", getClientAddress(client));
-    }
-
-    private void handleRead(SelectionKey key, Path uploadDir) {
-        SocketChannel client = (SocketChannel) key.channel();
-        ClientAttachment attachment = (ClientAttachment) key.attachment();
-
-        ByteBuffer buffer = ByteBuffer.allocate(config.getBufferSize());
-        int bytesRead;
-        try {
-            bytesRead = client.read(buffer);
-            if (bytesRead == -1) {
-                closeConnection(client);
-                return;
-            }
-        } catch (IOException e) {
-            logger.error("Ошибка чтения от клиента {}: {}", getClientAddress(client), e.getMessage(), e);
-            closeConnection(client);
-            return;
-        }
-
-        if (bytesRead > 0) {
-            buffer.flip();
-            try {
-                attachment.processData(buffer, uploadDir);
-                if (attachment.isFinished()) {
-                    boolean success = attachment.verifyFileSize();
-                    ByteBuffer confirmation = ByteBuffer.allocate(1);
-                    confirmation.put(success ? (byte)1 : (byte)0);
-                    confirmation.flip();
-                    while (confirmation.hasRemaining()) {
-                        client.write(confirmation);
-                    }
-                    logger.info("Файл {} {} получен от {}", attachment.getFileName(), success ? "успешно" : "не успешно", getClientAddress(client));
-                    attachment.calculateAndReportSpeed(System.currentTimeMillis());
-                    closeConnection(client);
-                }
-            } catch (IOException e) {
-                logger.error("Ошибка обработки данных от клиента {}: {}", getClientAddress(client), e.getMessage(), e);
-                closeConnection(client);
-            }
-        }
-    }
-
-    private void closeConnection(SocketChannel client) {
-        try {
-            logger.info("Закрытие соединения с клиентом: {}", getClientAddress(client));
-            clients.remove(client);
-            client.close();
-        } catch (IOException e) {
-            logger.error("Ошибка при закрытии соединения с клиентом {}: {}", getClientAddress(client), e.getMessage(), e);
+    /**
+     * Раздаёт принятые соединения рабочим потокам по кругу.
+     */
+    private void accept(ServerSocketChannel serverChannel, Worker[] workers) throws IOException {
+        SocketChannel client;
+        while ((client = serverChannel.accept()) != null) {
+            workers[nextWorker].register(client);
+            nextWorker = (nextWorker + 1) % workers.length;
         }
     }
 
@@ -140,22 +97,20 @@ public class Server {
         }
     }
 
-    private String getClientAddress(SocketChannel client) {
-        try {
-            return client.getRemoteAddress().toString();
-        } catch (IOException e) {
-            return "Unknown";
-        }
-    }
-
-    private void shutdown(Selector selector, ServerSocketChannel serverChannel) {
+    private void shutdown(Selector selector, ServerSocketChannel serverChannel, Worker[] workers) {
         try {
             scheduler.shutdown();
             selector.close();
             serverChannel.close();
+            for (Worker worker : workers) {
+                worker.close();
+            }
+            diskExecutor.shutdown();
             logger.info("Сервер остановлен.");
         } catch (IOException e) {
             logger.error("Ошибка при остановке сервера: {}", e.getMessage(), e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
 }
\ No newline at end of file
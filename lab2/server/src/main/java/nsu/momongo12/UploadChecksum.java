@@ -0,0 +1,74 @@
+package nsu.momongo12;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.CRC32C;
+
+/**
+ * Контрольные суммы содержимого, заказанные клиентом маркерами в заголовке.
+ * Считаются по ходу приёма, по тем же буферам, что уходят на запись, и
+ * сверяются с трейлером, который клиент присылает после содержимого:
+ * сначала CRC32C (4 байта), затем SHA-256 (32 байта).
+ */
+public class UploadChecksum {
+
+    private CRC32C crc32c;
+    private MessageDigest sha256;
+
+    public boolean enableCrc32c() {
+        if (crc32c != null) {
+            return false;
+        }
+        crc32c = new CRC32C();
+        return true;
+    }
+
+    public boolean enableSha256() {
+        if (sha256 != null) {
+            return false;
+        }
+        try {
+            sha256 = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 недоступен", e);
+        }
+        return true;
+    }
+
+    public boolean isEnabled() {
+        return crc32c != null || sha256 != null;
+    }
+
+    public int getTrailerLength() {
+        return (crc32c != null ? Integer.BYTES : 0) + (sha256 != null ? 32 : 0);
+    }
+
+    /**
+     * Учитывает оставшееся содержимое буфера, не сдвигая его позицию.
+     */
+    public void update(ByteBuffer content) {
+        int position = content.position();
+        if (crc32c != null) {
+            crc32c.update(content);
+            content.position(position);
+        }
+        if (sha256 != null) {
+            sha256.update(content);
+            content.position(position);
+        }
+    }
+
+    public boolean matches(ByteBuffer trailer) {
+        boolean matches = true;
+        if (crc32c != null) {
+            matches = trailer.getInt() == (int) crc32c.getValue();
+        }
+        if (sha256 != null) {
+            byte[] expected = new byte[32];
+            trailer.get(expected);
+            matches &= MessageDigest.isEqual(expected, sha256.digest());
+        }
+        return matches;
+    }
+}
@@ -0,0 +1,65 @@
+package nsu.momongo12;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Файл состояния докачиваемой загрузки рядом с самим файлом: ожидаемый размер
+ * и сколько байт от начала файла уже гарантированно лежит на диске.
+ */
+public final class UploadState {
+
+    private static final String SUFFIX = ".upload";
+    private static final int RECORD_SIZE = Long.BYTES * 2;
+
+    private UploadState() {
+    }
+
+    public static Path stateFileFor(Path filePath) {
+        return filePath.resolveSibling(filePath.getFileName() + SUFFIX);
+    }
+
+    /**
+     * С какого смещения можно продолжить загрузку файла заданного размера.
+     * Если состояния нет, оно от файла другого размера или файл короче
+     * записанного смещения, загрузка начинается заново.
+     */
+    public static long readCommittedOffset(Path stateFile, Path filePath, long fileSize) throws IOException {
+        if (!Files.exists(stateFile) || !Files.exists(filePath)) {
+            return 0;
+        }
+        ByteBuffer record = ByteBuffer.wrap(Files.readAllBytes(stateFile));
+        if (record.remaining() != RECORD_SIZE) {
+            return 0;
+        }
+        long expectedSize = record.getLong();
+        long committedOffset = record.getLong();
+        if (expectedSize != fileSize || committedOffset < 0 || committedOffset > fileSize
+                || committedOffset > Files.size(filePath)) {
+            return 0;
+        }
+        return committedOffset;
+    }
+
+    /**
+     * Записывает состояние через временный файл и атомарную замену, чтобы
+     * при сбое остался либо прежний, либо новый чекпоинт целиком.
+     */
+    public static void write(Path stateFile, long fileSize, long committedOffset) throws IOException {
+        Path tempFile = stateFile.resolveSibling(stateFile.getFileName() + ".tmp");
+        ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE).putLong(fileSize).putLong(committedOffset).flip();
+        try (FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            while (record.hasRemaining()) {
+                channel.write(record);
+            }
+            channel.force(true);
+        }
+        Files.move(tempFile, stateFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
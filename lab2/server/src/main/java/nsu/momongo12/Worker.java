@@ -0,0 +1,272 @@
+package nsu.momongo12;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Рабочий поток со своим селектором. Принятые соединения передаются ему
+ * акцептором и до закрытия обслуживаются только этим потоком. На диск
+ * рабочий поток не пишет: содержимое файлов уходит в дисковый пул, а о
+ * завершении записей он узнаёт через свою очередь задач. Читает в прямые
+ * буферы из собственных пулов, так что в установившемся режиме обработка
+ * событий обходится без выделения памяти. Содержимое файла читается крупными
+ * буферами, по несколько чтений на событие. Ответы клиенту копятся в его
+ * вложении и уходят, когда сокет готов их принять.
+ */
+public class Worker implements Runnable {
+
+    private static final Logger logger = LoggerFactory.getLogger(Worker.class);
+
+    // сколько раз подряд читать содержимое одного клиента, прежде чем вернуться к остальным
+    private static final int MAX_READS_PER_EVENT = 16;
+
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final Map<SocketChannel, ClientAttachment> clients;
+    private final Config config;
+    private final Path uploadDir;
+    private final ExecutorService diskExecutor;
+    private final BufferPool bufferPool;
+    private final BufferPool ingestPool;
+    private final Thread thread;
+
+    private volatile boolean closed;
+
+    public Worker(int id, Config config, Path uploadDir, Map<SocketChannel, ClientAttachment> clients,
+                  ExecutorService diskExecutor) throws IOException {
+        this.selector = Selector.open();
+        this.config = config;
+        this.uploadDir = uploadDir;
+        this.diskExecutor = diskExecutor;
+        this.clients = clients;
+        this.bufferPool = new BufferPool(config.getBufferSize(), config.getBufferPoolSize());
+        this.ingestPool = new BufferPool(config.getIngestBufferSize(), config.getIngestBufferPoolSize());
+        this.thread = new Thread(this, "worker-" + id);
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    /**
+     * Передаёт принятое соединение этому рабочему; регистрация в селекторе
+     * выполняется в его потоке.
+     */
+    public void register(SocketChannel client) {
+        execute(() -> registerClient(client));
+    }
+
+    private void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!closed) {
+                selector.select();
+                runTasks();
+
+                Set<SelectionKey> selectedKeys = selector.selectedKeys();
+                Iterator<SelectionKey> iter = selectedKeys.iterator();
+
+                while (iter.hasNext()) {
+                    SelectionKey key = iter.next();
+                    iter.remove();
+
+                    if (key.isValid() && key.isReadable()) {
+                        handleRead(key);
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        handleProgress(key, (ClientAttachment) key.attachment());
+                    }
+                }
+            }
+        } catch (ClosedSelectorException e) {
+            logger.debug("Селектор рабочего потока закрыт");
+        } catch (IOException e) {
+            logger.error("Ошибка в рабочем потоке: {}", e.getMessage(), e);
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            task.run();
+        }
+    }
+
+    private void registerClient(SocketChannel client) {
+        try {
+            client.configureBlocking(false);
+            ClientAttachment attachment = new ClientAttachment(client, config, diskExecutor, ingestPool);
+            SelectionKey key = client.register(selector, SelectionKey.OP_READ, attachment);
+            Runnable progressTask = () -> {
+                if (key.isValid()) {
+                    handleProgress(key, attachment);
+                }
+            };
+            attachment.setWriteProgressListener(() -> execute(progressTask));
+            clients.put(client, attachment);
+            logger.info("Подключен клиент: {}", getClientAddress(client));
+        } catch (IOException e) {
+            logger.error("Ошибка регистрации клиента {}: {}", getClientAddress(client), e.getMessage(), e);
+            closeConnection(client);
+        }
+    }
+
+    private void handleRead(SelectionKey key) {
+        SocketChannel client = (SocketChannel) key.channel();
+        ClientAttachment attachment = (ClientAttachment) key.attachment();
+
+        for (int reads = 0; reads < MAX_READS_PER_EVENT; reads++) {
+            boolean moreData = readOnce(client, attachment);
+            if (!moreData || !attachment.isReceivingContent() || !attachment.canRead()) {
+                break;
+            }
+        }
+        if (client.isOpen()) {
+            handleProgress(key, attachment);
+        }
+    }
+
+    /**
+     * Одно чтение из сокета и разбор прочитанного. Содержимое файла читается
+     * в буфер из пула приёма и не дальше конца файла.
+     *
+     * @return true, если буфер заполнен целиком и в сокете, вероятно, есть ещё данные
+     */
+    private boolean readOnce(SocketChannel client, ClientAttachment attachment) {
+        boolean ingest = attachment.isReceivingContent();
+        PooledBuffer data = (ingest ? ingestPool : bufferPool).acquire();
+        ByteBuffer buffer = data.buffer();
+        if (ingest) {
+            buffer.limit((int) Math.min(buffer.capacity(), attachment.getRemainingContent()));
+        }
+        int bytesRead;
+        try {
+            bytesRead = client.read(buffer);
+            if (bytesRead == -1) {
+                data.release();
+                if (!attachment.onInputShutdown()) {
+                    closeConnection(client);
+                }
+                return false;
+            }
+        } catch (IOException e) {
+            data.release();
+            logger.error("Ошибка чтения от клиента {}: {}", getClientAddress(client), e.getMessage(), e);
+            closeConnection(client);
+            return false;
+        }
+
+        if (bytesRead == 0) {
+            data.release();
+            return false;
+        }
+
+        boolean filled = !buffer.hasRemaining();
+        buffer.flip();
+        try {
+            attachment.processData(data, uploadDir);
+        } catch (IOException e) {
+            logger.error("Ошибка обработки данных от клиента {}: {}", getClientAddress(client), e.getMessage(), e);
+            closeConnection(client);
+            return false;
+        }
+        return filled;
+    }
+
+    /**
+     * После приёма данных, после завершения записей на диск и когда сокет
+     * готов к записи: подтверждение, если файл записан целиком, иначе чтение
+     * по состоянию очереди записи. В сессии подтверждения принятых файлов
+     * уходят по порядку, по мере записи; то, что сокет не принял сразу,
+     * дописывается по готовности к записи.
+     * Первыми разбираются байты, отложенные до открытия файла или из-за заполненной очереди записи.
+     */
+    private void handleProgress(SelectionKey key, ClientAttachment attachment) {
+        SocketChannel client = (SocketChannel) key.channel();
+        try {
+            attachment.processPendingInput(uploadDir);
+            while (attachment.completeWrites()) {
+                queueConfirmation(client, attachment);
+            }
+            ByteBuffer output = attachment.getOutput();
+            if (output.hasRemaining()) {
+                client.write(output);
+            }
+            if (attachment.isComplete()) {
+                closeConnection(client);
+                return;
+            }
+            if (output.hasRemaining()) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            } else {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            }
+        } catch (IOException e) {
+            logger.error("Ошибка обработки данных от клиента {}: {}", getClientAddress(client), e.getMessage(), e);
+            closeConnection(client);
+            return;
+        }
+
+        if (attachment.canRead()) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        } else {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        }
+    }
+
+    private void queueConfirmation(SocketChannel client, ClientAttachment attachment) {
+        FileUpload upload = attachment.getCompletedUpload();
+        boolean success = upload.getConfirmationStatus() == ClientAttachment.STATUS_OK;
+        attachment.confirmationQueued();
+        logger.info("Файл {} {} получен от {}", upload.getFileName(), success ? "успешно" : "не успешно", getClientAddress(client));
+        attachment.calculateAndReportSpeed(System.currentTimeMillis());
+    }
+
+    private void closeConnection(SocketChannel client) {
+        try {
+            logger.info("Закрытие соединения с клиентом: {}", getClientAddress(client));
+            ClientAttachment attachment = clients.remove(client);
+            if (attachment != null) {
+                attachment.close();
+            }
+            client.close();
+        } catch (IOException e) {
+            logger.error("Ошибка при закрытии соединения с клиентом {}: {}", getClientAddress(client), e.getMessage(), e);
+        }
+    }
+
+    private String getClientAddress(SocketChannel client) {
+        try {
+            return client.getRemoteAddress().toString();
+        } catch (IOException e) {
+            return "Unknown";
+        }
+    }
+
+    public void close() throws IOException, InterruptedException {
+        closed = true;
+        selector.wakeup();
+        thread.join();
+
+        for (SelectionKey key : selector.keys()) {
+            closeConnection((SocketChannel) key.channel());
+        }
+        selector.close();
+    }
+}
@@ -0,0 +1,135 @@
+package nsu.momongo12;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Выделения памяти рабочего потока, пока он принимает содержимое файла.
+ * Буферы чтения берутся из пулов, но ровно ноль байт недостижим: на каждый
+ * буфер приёма остаётся около сотни байт, и все они не в коде сервера:
+ * <ul>
+ *     <li>{@code AsynchronousFileChannel.write} - задача записи для дискового
+ *     пула ({@code SimpleAsynchronousFileChannelImpl}) и узел
+ *     {@code LinkedBlockingQueue} в очереди пула;</li>
+ *     <li>итератор {@code selectedKeys()} в {@code Worker.run} - по одному на
+ *     выход из {@code select()}.</li>
+ * </ul>
+ * Тест ограничивает этот остаток сверху: буфер, выделяемый на каждое
+ * чтение, как было раньше, дал бы сотни килобайт на буфер приёма.
+ */
+class WorkerAllocationTest {
+
+    private static final long WARMUP_BYTES = 64L << 20;
+    private static final long MEASURED_BYTES = 128L << 20;
+    private static final int CHUNK_SIZE = 1 << 20;
+    private static final long MAX_BYTES_PER_INGEST_BUFFER = 256;
+
+    @TempDir
+    Path uploadDir;
+
+    private ExecutorService diskExecutor;
+    private Worker worker;
+
+    @AfterEach
+    void tearDown() throws Exception {
+        if (worker != null) {
+            worker.close();
+        }
+        if (diskExecutor != null) {
+            diskExecutor.shutdownNow();
+        }
+    }
+
+    @Test
+    void steadyStateIngestAllocatesOnlyForDiskWrites() throws Exception {
+        Config config = new Config("config.properties");
+        diskExecutor = Executors.newFixedThreadPool(config.getDiskWriterThreads());
+        worker = new Worker(0, config, uploadDir, new ConcurrentHashMap<>(), diskExecutor);
+        worker.start();
+        long workerThreadId = findThread("worker-0").getId();
+
+        try (ServerSocketChannel listener = ServerSocketChannel.open()) {
+            listener.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            try (SocketChannel client = SocketChannel.open(listener.getLocalAddress())) {
+                worker.register(listener.accept());
+
+                // файл заявлен длиннее, чем будет прислано: замер идёт посреди содержимого
+                byte[] name = "steady.bin".getBytes(StandardCharsets.UTF_8);
+                ByteBuffer header = ByteBuffer.allocate(Integer.BYTES + name.length + Long.BYTES)
+                        .putInt(name.length).put(name).putLong(WARMUP_BYTES + MEASURED_BYTES + 1).flip();
+                writeFully(client, header);
+                Path uploaded = uploadDir.resolve("steady.bin");
+
+                ByteBuffer chunk = ByteBuffer.allocateDirect(CHUNK_SIZE);
+                send(client, chunk, WARMUP_BYTES);
+                awaitSize(uploaded, WARMUP_BYTES);
+
+                long allocatedBefore = allocatedBytes(workerThreadId);
+                send(client, chunk, MEASURED_BYTES);
+                awaitSize(uploaded, WARMUP_BYTES + MEASURED_BYTES);
+                long allocated = allocatedBytes(workerThreadId) - allocatedBefore;
+
+                long ingestBuffers = MEASURED_BYTES / config.getIngestBufferSize();
+                long perBuffer = allocated / ingestBuffers;
+                assertTrue(perBuffer <= MAX_BYTES_PER_INGEST_BUFFER,
+                        () -> "Worker allocated " + allocated + " bytes for " + ingestBuffers
+                                + " ingest buffers, " + perBuffer + " per buffer");
+            }
+        }
+    }
+
+    private static void send(SocketChannel client, ByteBuffer chunk, long bytes) throws IOException {
+        for (long sent = 0; sent < bytes; sent += CHUNK_SIZE) {
+            chunk.clear();
+            writeFully(client, chunk);
+        }
+    }
+
+    private static void writeFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Данные на диске - значит, рабочий поток их уже прочитал и отдал на запись.
+     */
+    private static void awaitSize(Path file, long size) throws Exception {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (!Files.exists(file) || Files.size(file) < size) {
+            assertTrue(System.nanoTime() < deadline, "Upload did not reach " + size + " bytes");
+            Thread.sleep(10);
+        }
+    }
+
+    private static long allocatedBytes(long threadId) {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getThreadAllocatedBytes(threadId);
+    }
+
+    private static Thread findThread(String name) {
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().equals(name)) {
+                return thread;
+            }
+        }
+        throw new IllegalStateException("Thread not found: " + name);
+    }
+}
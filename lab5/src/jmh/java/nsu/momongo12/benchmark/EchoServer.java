@@ -0,0 +1,73 @@
+package nsu.momongo12.benchmark;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Блокирующий эхо-сервер на loopback, играет роль upstream для бенчмарков.
+ *
+ * @author momongo12
+ * @version 1.0
+ */
+public class EchoServer implements AutoCloseable {
+
+    private final ServerSocketChannel serverChannel;
+
+    private EchoServer(ServerSocketChannel serverChannel) {
+        this.serverChannel = serverChannel;
+    }
+
+    public static EchoServer start() throws IOException {
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        EchoServer echoServer = new EchoServer(serverChannel);
+
+        Thread acceptor = new Thread(echoServer::acceptLoop, "echo-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        return echoServer;
+    }
+
+    public InetSocketAddress getAddress() throws IOException {
+        return (InetSocketAddress) serverChannel.getLocalAddress();
+    }
+
+    private void acceptLoop() {
+        try {
+            while (serverChannel.isOpen()) {
+                SocketChannel client = serverChannel.accept();
+                client.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                Thread worker = new Thread(() -> echo(client), "echo-worker");
+                worker.setDaemon(true);
+                worker.start();
+            }
+        } catch (IOException e) {
+            // сервер закрыт
+        }
+    }
+
+    private void echo(SocketChannel client) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+        try (client) {
+            while (client.read(buffer) >= 0) {
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    client.write(buffer);
+                }
+                buffer.clear();
+            }
+        } catch (IOException e) {
+            // клиент отключился
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverChannel.close();
+    }
+}
@@ -0,0 +1,72 @@
+package nsu.momongo12.benchmark;
+
+import nsu.momongo12.logic.Socks5Exception;
+import nsu.momongo12.logic.Socks5HandshakeParser;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Разбор рукопожатия одного соединения: приветствие и CONNECT-запрос.
+ * Одна операция - новый парсер, как на каждое принятое соединение, и разбор
+ * до {@link Socks5HandshakeParser.Result#REQUEST}. Режим {@code pipelined} подаёт
+ * всё рукопожатие одним чтением, {@code split} - по {@value #SPLIT_SEGMENT} байта.
+ *
+ * @author momongo12
+ * @version 1.0
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HandshakeBenchmark {
+
+    private static final int SPLIT_SEGMENT = 3;
+
+    @Param({"ipv4", "domain"})
+    public String addressType;
+
+    @Param({"pipelined", "split"})
+    public String delivery;
+
+    private byte[] handshake;
+    private int segmentSize;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        ByteBuffer message = ByteBuffer.allocate(Socks5HandshakeParser.SCRATCH_BUFFER_SIZE);
+        message.put(new byte[]{0x05, 0x02, 0x00, 0x02});
+        message.put(new byte[]{0x05, 0x01, 0x00});
+        if (addressType.equals("ipv4")) {
+            message.put((byte) 0x01).put(new byte[]{(byte) 192, (byte) 168, 0, 1});
+        } else {
+            byte[] domain = "upstream.example.com".getBytes(StandardCharsets.US_ASCII);
+            message.put((byte) 0x03).put((byte) domain.length).put(domain);
+        }
+        message.putShort((short) 443);
+        message.flip();
+
+        handshake = new byte[message.remaining()];
+        message.get(handshake);
+        segmentSize = delivery.equals("split") ? SPLIT_SEGMENT : handshake.length;
+    }
+
+    @Benchmark
+    public int parse() throws Socks5Exception {
+        Socks5HandshakeParser parser = new Socks5HandshakeParser();
+        for (int offset = 0; offset < handshake.length; offset += segmentSize) {
+            parser.getBuffer().put(handshake, offset, Math.min(segmentSize, handshake.length - offset));
+            Socks5HandshakeParser.Result result;
+            while ((result = parser.parse()) != Socks5HandshakeParser.Result.NEED_MORE_DATA) {
+                if (result == Socks5HandshakeParser.Result.REQUEST) {
+                    return parser.getPort();
+                }
+            }
+        }
+        throw new IllegalStateException("Handshake was not parsed");
+    }
+}
@@ -0,0 +1,64 @@
+package nsu.momongo12.benchmark;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Сервер, который принимает соединения и держит их открытыми, ничего не читая.
+ * Цель для фоновых простаивающих туннелей: без потока и буфера на соединение.
+ *
+ * @author momongo12
+ * @version 1.0
+ */
+public class IdleServer implements AutoCloseable {
+
+    private final ServerSocketChannel serverChannel;
+    private final List<SocketChannel> connections = new ArrayList<>();
+
+    private IdleServer(ServerSocketChannel serverChannel) {
+        this.serverChannel = serverChannel;
+    }
+
+    public static IdleServer start() throws IOException {
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1024);
+        IdleServer idleServer = new IdleServer(serverChannel);
+
+        Thread acceptor = new Thread(idleServer::acceptLoop, "idle-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        return idleServer;
+    }
+
+    public InetSocketAddress getAddress() throws IOException {
+        return (InetSocketAddress) serverChannel.getLocalAddress();
+    }
+
+    private void acceptLoop() {
+        try {
+            while (serverChannel.isOpen()) {
+                SocketChannel connection = serverChannel.accept();
+                synchronized (connections) {
+                    connections.add(connection);
+                }
+            }
+        } catch (IOException e) {
+            // сервер закрыт
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverChannel.close();
+        synchronized (connections) {
+            for (SocketChannel connection: connections) {
+                connection.close();
+            }
+        }
+    }
+}
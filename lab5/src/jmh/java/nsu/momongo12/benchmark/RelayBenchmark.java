@@ -0,0 +1,203 @@
+package nsu.momongo12.benchmark;
+
+import nsu.momongo12.logic.ProxyServer;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Пропускная способность туннеля через прокси на loopback. Одна операция - запись блока и чтение его эха,
+ * то есть через прокси проходит два блока. {@code pingPong} - задержка
+ * круга для короткого сообщения, распределение по перцентилям.
+ * <p>
+ * {@code proxyMode} - реакторы с очередями ({@code reactor-queue}) или
+ * с прямой пересылкой ({@code reactor-splice}) либо виртуальный поток на
+ * туннель ({@code virtual}, где режим пересылки ни на что не влияет).
+ * {@code idleTunnels} держит открытыми столько фоновых туннелей, пока идёт
+ * замер. Каждый туннель - четыре дескриптора, поэтому по умолчанию фоновых
+ * туннелей нет, а замер под нагрузкой включается явно, с
+ * {@code ulimit -n} не меньше 40000:
+ * {@code ./gradlew jmh -Pjmh.params='idleTunnels=10000'}.
+ * <p>
+ * Счётчик {@code proxyCpuNanos} - процессорное время потоков реакторов
+ * (в режиме {@code virtual} - потоков-носителей виртуальных потоков), а
+ * {@code relayedBytes} - объём, прошедший через прокси за ту же итерацию.
+ * Их отношение, умноженное на 2^30, даёт наносекунды процессора на гигабайт.
+ *
+ * @author momongo12
+ * @version 1.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class RelayBenchmark {
+
+    private static final String REACTOR_THREAD_PREFIX = "socks5-reactor-";
+    // планировщик виртуальных потоков по умолчанию - отдельный ForkJoinPool
+    private static final String CARRIER_THREAD_PREFIX = "ForkJoinPool-";
+    private static final int PING_SIZE = 64;
+
+    private static final String VIRTUAL_MODE = "virtual";
+
+    @Param({"reactor-queue", "reactor-splice", VIRTUAL_MODE})
+    public String proxyMode;
+
+    @Param({"65536"})
+    public int chunkSize;
+
+    @Param({"0"})
+    public int idleTunnels;
+
+    private EchoServer echoServer;
+    private IdleServer idleServer;
+    private ProxyServer proxy;
+    private SocketChannel tunnel;
+    private final List<SocketChannel> backgroundTunnels = new ArrayList<>();
+    private ByteBuffer outgoing;
+    private ByteBuffer incoming;
+    private ByteBuffer ping;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        echoServer = EchoServer.start();
+
+        int proxyPort = findFreePort();
+        // Config читается один раз на JVM, а JMH запускает каждый набор параметров в отдельном форке
+        System.setProperty("server.port", String.valueOf(proxyPort));
+        if (proxyMode.equals(VIRTUAL_MODE)) {
+            System.setProperty("execution.mode", VIRTUAL_MODE);
+        } else {
+            System.setProperty("execution.mode", "reactor");
+            System.setProperty("relay.mode", proxyMode.substring("reactor-".length()));
+        }
+        System.setProperty("worker.count", "1");
+        System.setProperty("metrics.port", "0");
+
+        proxy = ProxyServer.create();
+        Thread acceptor = new Thread(() -> {
+            try {
+                proxy.start();
+            } catch (Exception e) {
+                // прокси остановлен в tearDown
+            }
+        }, "socks5-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        InetSocketAddress proxyAddress = new InetSocketAddress(InetAddress.getLoopbackAddress(), proxyPort);
+        tunnel = Socks5Client.connect(proxyAddress, echoServer.getAddress());
+
+        idleServer = IdleServer.start();
+        for (int i = 0; i < idleTunnels; i++) {
+            backgroundTunnels.add(Socks5Client.connect(proxyAddress, idleServer.getAddress()));
+        }
+
+        outgoing = ByteBuffer.allocateDirect(chunkSize);
+        byte[] payload = new byte[chunkSize];
+        ThreadLocalRandom.current().nextBytes(payload);
+        outgoing.put(payload);
+        incoming = ByteBuffer.allocateDirect(chunkSize);
+        ping = ByteBuffer.allocateDirect(PING_SIZE);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        tunnel.close();
+        for (SocketChannel backgroundTunnel: backgroundTunnels) {
+            backgroundTunnel.close();
+        }
+        proxy.close();
+        idleServer.close();
+        echoServer.close();
+    }
+
+    @Benchmark
+    public byte roundTrip(RelayCounters counters) throws IOException {
+        outgoing.clear();
+        Socks5Client.writeFully(tunnel, outgoing);
+
+        incoming.clear();
+        while (incoming.hasRemaining()) {
+            if (tunnel.read(incoming) < 0) {
+                throw new EOFException("Tunnel closed");
+            }
+        }
+        counters.relayedBytes += 2L * chunkSize;
+        return incoming.get(0);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public byte pingPong(RelayCounters counters) throws IOException {
+        ping.clear();
+        Socks5Client.writeFully(tunnel, ping);
+
+        ping.clear();
+        while (ping.hasRemaining()) {
+            if (tunnel.read(ping) < 0) {
+                throw new EOFException("Tunnel closed");
+            }
+        }
+        counters.relayedBytes += 2L * PING_SIZE;
+        return ping.get(0);
+    }
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class RelayCounters {
+
+        public long relayedBytes;
+        public long proxyCpuNanos;
+
+        private long cpuAtStart;
+
+        @Setup(Level.Iteration)
+        public void start() {
+            relayedBytes = 0;
+            proxyCpuNanos = 0;
+            cpuAtStart = reactorCpuNanos();
+        }
+
+        @TearDown(Level.Iteration)
+        public void stop() {
+            proxyCpuNanos = reactorCpuNanos() - cpuAtStart;
+        }
+    }
+
+    private static long reactorCpuNanos() {
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        long total = 0;
+        for (Thread thread: Thread.getAllStackTraces().keySet()) {
+            String name = thread.getName();
+            if (name.startsWith(REACTOR_THREAD_PREFIX) || name.startsWith(CARRIER_THREAD_PREFIX)) {
+                long cpuTime = threadMXBean.getThreadCpuTime(thread.threadId());
+                if (cpuTime > 0) {
+                    total += cpuTime;
+                }
+            }
+        }
+        return total;
+    }
+
+    private static int findFreePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package nsu.momongo12.benchmark;
+
+import nsu.momongo12.logic.BufferPool;
+import nsu.momongo12.model.ChannelPair;
+import nsu.momongo12.model.RelayQueue;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Очередь одного направления {@link ChannelPair} без сокетов: буферы берутся
+ * из пула, ставятся в очередь и выписываются обратно, как при медленном
+ * получателе. Одна операция - один буфер, байты в секунду - ops/s, умноженные
+ * на {@code bufferSize}.
+ *
+ * @author momongo12
+ * @version 1.0
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RelayQueueBenchmark {
+
+    private static final int POOL_SIZE = 1024;
+    // пороги очереди по умолчанию из config.properties
+    private static final int HIGH_WATERMARK = 262144;
+    private static final int LOW_WATERMARK = 65536;
+
+    @Param({"8192"})
+    public int bufferSize;
+
+    // сколько буферов накапливается в очереди до того, как получатель начнёт их забирать; делитель 32
+    @Param({"1", "32"})
+    public int queueDepth;
+
+    private BufferPool bufferPool;
+    private ChannelPair channelPair;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        bufferPool = new BufferPool(bufferSize, POOL_SIZE);
+        channelPair = new ChannelPair(null, null, bufferPool, HIGH_WATERMARK, LOW_WATERMARK);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(32)
+    public long enqueueAndDrain() {
+        RelayQueue queue = channelPair.getClientToServerQueue();
+        long drained = 0;
+        for (int batch = 0; batch < 32; batch += queueDepth) {
+            for (int i = 0; i < queueDepth; i++) {
+                ByteBuffer buffer = bufferPool.acquire();
+                // имитация чтения из сокета целого буфера
+                buffer.position(buffer.limit());
+                buffer.flip();
+                queue.recordRelayed(buffer.remaining());
+                queue.add(buffer);
+            }
+            while (!queue.isEmpty()) {
+                ByteBuffer buffer = queue.peek();
+                int written = buffer.remaining();
+                buffer.position(buffer.limit());
+                queue.consumed(written);
+                drained += written;
+                bufferPool.release(queue.poll());
+            }
+        }
+        return drained;
+    }
+}
@@ -0,0 +1,61 @@
+package nsu.momongo12.benchmark;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Минимальный блокирующий SOCKS5-клиент: приветствие без аутентификации и CONNECT по IPv4.
+ *
+ * @author momongo12
+ * @version 1.0
+ */
+public final class Socks5Client {
+
+    private Socks5Client() {
+    }
+
+    public static SocketChannel connect(InetSocketAddress proxy, InetSocketAddress target) throws IOException {
+        SocketChannel channel = SocketChannel.open(proxy);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+
+        writeFully(channel, ByteBuffer.wrap(new byte[]{0x05, 0x01, 0x00}));
+        ByteBuffer methodReply = readFully(channel, 2);
+        if (methodReply.get(1) != 0x00) {
+            throw new IOException("Proxy rejected authentication method: " + methodReply.get(1));
+        }
+
+        ByteBuffer request = ByteBuffer.allocate(10);
+        request.put((byte) 0x05).put((byte) 0x01).put((byte) 0x00).put((byte) 0x01);
+        request.put(target.getAddress().getAddress());
+        request.putShort((short) target.getPort());
+        request.flip();
+        writeFully(channel, request);
+
+        ByteBuffer reply = readFully(channel, 10);
+        if (reply.get(1) != 0x00) {
+            throw new IOException("Proxy CONNECT failed with reply code: " + reply.get(1));
+        }
+        return channel;
+    }
+
+    public static void writeFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    public static ByteBuffer readFully(SocketChannel channel, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException("Proxy closed connection");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+}
@@ -1,7 +1,7 @@
 package nsu.momongo12;
 
 import lombok.extern.slf4j.Slf4j;
-import nsu.momongo12.logic.Socks5Server;
+import nsu.momongo12.logic.ProxyServer;
 
 /**
  * @author momongo12
@@ -11,10 +11,21 @@ import nsu.momongo12.logic.Socks5Server;
 public class Main {
 
     public static void main(String[] args) {
-        try (var server = new Socks5Server()) {
+        try (var server = ProxyServer.create()) {
+            // SIGTERM/SIGINT: дорабатываем открытые туннели, JVM ждёт, пока main закроет сервер
+            Thread mainThread = Thread.currentThread();
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                server.drain();
+                try {
+                    mainThread.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }, "shutdown"));
+
             server.start();
         } catch (Exception e) {
             log.error("Unexpected server error", e);
         }
     }
-}
\ No newline at end of file
+}
@@ -2,6 +2,8 @@ package nsu.momongo12.config;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Properties;
 
 /**
@@ -23,13 +25,167 @@ public class Config {
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
+
+        // значения из файла можно переопределить через -Dключ=значение
+        for (String name: properties.stringPropertyNames()) {
+            String override = System.getProperty(name);
+            if (override != null) {
+                properties.setProperty(name, override);
+            }
+        }
     }
 
     public static int getServerPort() {
         return Integer.parseInt(properties.getProperty("server.port", "8080"));
     }
 
+    /**
+     * SO_REUSEPORT на слушающем сокете: новый процесс может начать приём на том
+     * же порту, пока старый дорабатывает открытые туннели.
+     */
+    public static boolean isServerReusePort() {
+        return Boolean.parseBoolean(properties.getProperty("server.reuse.port", "false"));
+    }
+
+    public static long getDrainTimeoutMillis() {
+        return Long.parseLong(properties.getProperty("shutdown.drain.timeout.seconds", "30")) * 1000;
+    }
+
     public static int getBufferSize() {
         return Integer.parseInt(properties.getProperty("buffer.size", "8192"));
     }
-}
\ No newline at end of file
+
+    public static int getBufferPoolSize() {
+        return Integer.parseInt(properties.getProperty("buffer.pool.size", "1024"));
+    }
+
+    public static int getRelayHighWatermark() {
+        return Integer.parseInt(properties.getProperty("relay.high.watermark", "262144"));
+    }
+
+    public static int getRelayLowWatermark() {
+        return Integer.parseInt(properties.getProperty("relay.low.watermark", "65536"));
+    }
+
+    public static RelayMode getRelayMode() {
+        return RelayMode.valueOf(properties.getProperty("relay.mode", "queue").toUpperCase());
+    }
+
+    public static int getDnsResolverThreads() {
+        return Integer.parseInt(properties.getProperty("dns.resolver.threads", "4"));
+    }
+
+    public static long getDnsCacheTtlMillis() {
+        return Long.parseLong(properties.getProperty("dns.cache.ttl.seconds", "60")) * 1000;
+    }
+
+    public static long getDnsNegativeCacheTtlMillis() {
+        return Long.parseLong(properties.getProperty("dns.cache.negative.ttl.seconds", "10")) * 1000;
+    }
+
+    public static int getDnsCacheSize() {
+        return Integer.parseInt(properties.getProperty("dns.cache.size", "10000"));
+    }
+
+    public static long getUdpIdleTimeoutMillis() {
+        return Long.parseLong(properties.getProperty("udp.idle.timeout.seconds", "60")) * 1000;
+    }
+
+    public static int getUdpNatMaxEntries() {
+        return Integer.parseInt(properties.getProperty("udp.nat.max.entries", "1024"));
+    }
+
+    public static int getUdpReceiveBatchSize() {
+        return Integer.parseInt(properties.getProperty("udp.receive.batch.size", "64"));
+    }
+
+    public static long getTimerTickMillis() {
+        return Long.parseLong(properties.getProperty("timer.tick.millis", "100"));
+    }
+
+    public static int getTimerWheelSize() {
+        return Integer.parseInt(properties.getProperty("timer.wheel.size", "512"));
+    }
+
+    public static long getHandshakeTimeoutMillis() {
+        return Long.parseLong(properties.getProperty("timeout.handshake.seconds", "10")) * 1000;
+    }
+
+    public static long getConnectTimeoutMillis() {
+        return Long.parseLong(properties.getProperty("timeout.connect.seconds", "10")) * 1000;
+    }
+
+    public static long getIdleTimeoutMillis() {
+        return Long.parseLong(properties.getProperty("timeout.idle.seconds", "300")) * 1000;
+    }
+
+    public static int getMetricsPort() {
+        // 0 - эндпоинт метрик выключен
+        return Integer.parseInt(properties.getProperty("metrics.port", "9090"));
+    }
+
+    public static String getMetricsBindAddress() {
+        // /tunnels показывает адреса клиентов, наружу эндпоинт открывается явно
+        return properties.getProperty("metrics.bind", "127.0.0.1");
+    }
+
+    public static long getConnectAttemptDelayMillis() {
+        return Long.parseLong(properties.getProperty("connect.attempt.delay.millis", "250"));
+    }
+
+    /**
+     * Адреса {@code host:port} через запятую, к которым держатся готовые соединения.
+     */
+    public static List<String> getUpstreamPoolDestinations() {
+        String destinations = properties.getProperty("upstream.pool.destinations", "").trim();
+        if (destinations.isEmpty()) {
+            return List.of();
+        }
+        return Arrays.stream(destinations.split(",")).map(String::trim).toList();
+    }
+
+    public static int getUpstreamPoolSize() {
+        return Integer.parseInt(properties.getProperty("upstream.pool.size", "2"));
+    }
+
+    public static long getUpstreamPoolMaxIdleMillis() {
+        return Long.parseLong(properties.getProperty("upstream.pool.max.idle.seconds", "30")) * 1000;
+    }
+
+    /**
+     * Файл с учётными записями; пустое значение - аутентификация не требуется.
+     */
+    public static String getCredentialsFile() {
+        return properties.getProperty("auth.credentials.file", "").trim();
+    }
+
+    public static long getShapingClientBytesPerSecond() {
+        return Long.parseLong(properties.getProperty("shaping.client.bytes.per.second", "0"));
+    }
+
+    public static long getShapingUserBytesPerSecond() {
+        return Long.parseLong(properties.getProperty("shaping.user.bytes.per.second", "0"));
+    }
+
+    public static long getShapingDestinationBytesPerSecond() {
+        return Long.parseLong(properties.getProperty("shaping.destination.bytes.per.second", "0"));
+    }
+
+    /**
+     * Чтение возобновляется по таймеру реактора, поэтому всплеск не должен быть
+     * меньше того, что проходит за тик колеса, иначе скорость выйдет ниже заданной.
+     */
+    public static long getShapingBurstBytes() {
+        return Long.parseLong(properties.getProperty("shaping.burst.bytes", "262144"));
+    }
+
+    public static ExecutionMode getExecutionMode() {
+        return ExecutionMode.valueOf(properties.getProperty("execution.mode", "reactor").toUpperCase());
+    }
+
+    public static int getWorkerCount() {
+        int workerCount = Integer.parseInt(properties.getProperty("worker.count", "0"));
+        // 0 - по числу доступных процессоров
+        return workerCount > 0 ? workerCount : Runtime.getRuntime().availableProcessors();
+    }
+}
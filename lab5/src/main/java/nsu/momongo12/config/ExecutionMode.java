@@ -0,0 +1,18 @@
+package nsu.momongo12.config;
+
+/**
+ * Модель выполнения прокси.
+ *
+ * @author momongo12
+ * @version 1.0
+ */
+public enum ExecutionMode {
+    /**
+     * Неблокирующий ввод-вывод: принимающий поток и рабочие реакторы на селекторах.
+     */
+    REACTOR,
+    /**
+     * Виртуальный поток на каждого клиента: рукопожатие и пересылка на блокирующих сокетах.
+     */
+    VIRTUAL
+}
@@ -0,0 +1,19 @@
+package nsu.momongo12.config;
+
+/**
+ * Способ перекладывания данных между каналами установленного туннеля.
+ *
+ * @author momongo12
+ * @version 1.0
+ */
+public enum RelayMode {
+    /**
+     * Каждое чтение берёт буфер из пула и ставит его в очередь направления.
+     */
+    QUEUE,
+    /**
+     * Один direct-буфер на направление: прочитанное сразу пишется в парный
+     * канал, в очередь попадает только недописанный остаток.
+     */
+    SPLICE
+}
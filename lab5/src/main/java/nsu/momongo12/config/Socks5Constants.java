@@ -6,6 +6,7 @@ public class Socks5Constants {
 
     // SOCKS Commands
     public static final byte COMMAND_CONNECT = 0x01;
+    public static final byte COMMAND_UDP_ASSOCIATE = 0x03;
 
     // SOCKS Address Types
     public static final byte ADDRESS_TYPE_IPV4 = 0x01;
@@ -17,11 +18,19 @@ public class Socks5Constants {
     public static final byte RESPONSE_COMMAND_NOT_SUPPORTED = 0x07;
     public static final byte RESPONSE_ADDRESS_TYPE_NOT_SUPPORTED = 0x08;
     public static final byte RESPONSE_HOST_UNREACHABLE = 0x04;
+    public static final byte RESPONSE_CONNECTION_REFUSED = 0x05;
+    public static final byte RESPONSE_TTL_EXPIRED = 0x06;
 
     // Authentication Methods
     public static final byte AUTH_METHOD_NO_AUTH = 0x00;
+    public static final byte AUTH_METHOD_USERNAME_PASSWORD = 0x02;
     public static final byte AUTH_METHOD_NO_ACCEPTABLE_METHODS = (byte) 0xFF;
 
+    // Username/Password Authentication (RFC 1929)
+    public static final byte AUTH_VERSION = 0x01;
+    public static final byte AUTH_STATUS_SUCCESS = 0x00;
+    public static final byte AUTH_STATUS_FAILURE = 0x01;
+
     // Sizes
     public static final int IPV4_ADDRESS_LENGTH = 4;
     public static final int RESPONSE_HEADER_SIZE = 10;
@@ -0,0 +1,61 @@
+package nsu.momongo12.logic;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Ограниченный пул direct-буферов одного реактора. Выдача и возврат
+ * выполняются только из потока реактора, счётчики можно читать из любого потока.
+ *
+ * @author momongo12
+ * @version 1.0
+ */
+public class BufferPool {
+
+    private final int bufferSize;
+    private final int capacity;
+    private final ArrayDeque<ByteBuffer> buffers;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    public BufferPool(int bufferSize, int capacity) {
+        this.bufferSize = bufferSize;
+        this.capacity = capacity;
+        this.buffers = new ArrayDeque<>(capacity);
+    }
+
+    public ByteBuffer acquire() {
+        // LIFO: последний возвращённый буфер скорее всего ещё в кэше процессора
+        ByteBuffer buffer = buffers.pollLast();
+        if (buffer != null) {
+            hits.increment();
+            return buffer;
+        }
+        misses.increment();
+        return ByteBuffer.allocateDirect(bufferSize);
+    }
+
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect() || buffer.capacity() != bufferSize) {
+            return;
+        }
+        if (buffers.size() < capacity) {
+            buffer.clear();
+            buffers.addLast(buffer);
+        }
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+}
@@ -0,0 +1,121 @@
+package nsu.momongo12.logic;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import nsu.momongo12.model.ChannelPair;
+
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Подключение к серверу с несколькими адресами по схеме happy eyeballs (RFC 8305):
+ * попытки запускаются с задержкой друг за другом, не дожидаясь таймаута
+ * предыдущих, первая установленная побеждает, остальные закрываются.
+ * Адреса чередуются по семействам, начиная с семейства первого адреса.
+ *
+ * @author momongo12
+ * @version 1.0
+ */
+@Getter
+@Slf4j
+public class ConnectRace {
+
+    private final ChannelPair channelPair;
+    private final InetAddress[] addresses;
+    private final int port;
+    private final List<SocketChannel> attempts = new ArrayList<>(2);
+
+    private int nextAddress;
+    private boolean finished;
+    private IOException lastError;
+    private TimerWheel.Timeout nextAttemptTimeout;
+
+    public ConnectRace(ChannelPair channelPair, InetAddress[] addresses, int port) {
+        this.channelPair = channelPair;
+        this.addresses = interleave(addresses);
+        this.port = port;
+    }
+
+    public boolean hasNextAddress() {
+        return nextAddress < addresses.length;
+    }
+
+    public InetAddress nextAddress() {
+        return addresses[nextAddress++];
+    }
+
+    public void addAttempt(SocketChannel attempt) {
+        attempts.add(attempt);
+    }
+
+    public void removeAttempt(SocketChannel attempt) {
+        attempts.remove(attempt);
+    }
+
+    public void setLastError(IOException lastError) {
+        this.lastError = lastError;
+    }
+
+    /**
+     * Новая отложенная попытка заменяет предыдущую.
+     */
+    public void setNextAttemptTimeout(TimerWheel.Timeout timeout) {
+        if (nextAttemptTimeout != null) {
+            nextAttemptTimeout.cancel();
+        }
+        nextAttemptTimeout = timeout;
+    }
+
+    /**
+     * Завершает гонку победой winner: остальные попытки закрываются.
+     */
+    public void win(SocketChannel winner) {
+        attempts.remove(winner);
+        close();
+    }
+
+    public void close() {
+        finished = true;
+        setNextAttemptTimeout(null);
+        for (SocketChannel attempt: attempts) {
+            try {
+                attempt.close();
+            } catch (IOException e) {
+                log.warn("Failed to close connect attempt: " + e.getMessage());
+            }
+        }
+        attempts.clear();
+    }
+
+    private static InetAddress[] interleave(InetAddress[] addresses) {
+        if (addresses.length < 2) {
+            return addresses;
+        }
+        List<InetAddress> first = new ArrayList<>();
+        List<InetAddress> second = new ArrayList<>();
+        boolean firstIsV6 = addresses[0] instanceof Inet6Address;
+        for (InetAddress address: addresses) {
+            if ((address instanceof Inet6Address) == firstIsV6) {
+                first.add(address);
+            } else {
+                second.add(address);
+            }
+        }
+
+        InetAddress[] ordered = new InetAddress[addresses.length];
+        int i = 0;
+        for (int j = 0; j < Math.max(first.size(), second.size()); j++) {
+            if (j < first.size()) {
+                ordered[i++] = first.get(j);
+            }
+            if (j < second.size()) {
+                ordered[i++] = second.get(j);
+            }
+        }
+        return ordered;
+    }
+}
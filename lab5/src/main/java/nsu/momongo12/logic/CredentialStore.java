@@ -0,0 +1,165 @@
+package nsu.momongo12.logic;
+
+import lombok.extern.slf4j.Slf4j;
+import nsu.momongo12.config.Config;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Учётные записи для аутентификации по имени и паролю (RFC 1929).
+ * <p>
+ * Файл читается целиком в неизменяемую таблицу «имя - SHA-256 пароля», которая
+ * подменяется атомарно при изменении файла; проверка на горячем пути - поиск в
+ * хэш-таблице и сравнение дайджестов за постоянное время, без блокировок и
+ * обращений к диску. Для неизвестного имени сравнение выполняется с пустым
+ * дайджестом, чтобы время ответа не выдавало, есть ли такой пользователь.
+ * <p>
+ * Формат файла: строки {@code имя:пароль} или {@code имя:{sha256}hex},
+ * пустые строки и строки, начинающиеся с {@code #}, пропускаются.
+ *
+ * @author momongo12
+ * @version 1.0
+ */
+@Slf4j
+public class CredentialStore implements AutoCloseable {
+
+    private static final String SHA256_PREFIX = "{sha256}";
+    private static final byte[] ABSENT_DIGEST = new byte[32];
+    private static final long RELOAD_QUIET_MILLIS = 200;
+
+    private static final ThreadLocal<MessageDigest> SHA256 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    private final Path file;
+    private final WatchService watchService;
+    private final Thread watcher;
+    private volatile Map<String, byte[]> credentials;
+
+    public CredentialStore(Path file) throws IOException {
+        this.file = file.toAbsolutePath();
+        this.credentials = read(this.file);
+        log.info("Loaded {} credentials from {}", credentials.size(), this.file);
+
+        // следим за каталогом: редакторы часто заменяют файл целиком
+        watchService = FileSystems.getDefault().newWatchService();
+        this.file.getParent().register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY);
+        watcher = new Thread(this::watch, "credentials-watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    /**
+     * Хранилище из файла, указанного в конфигурации, или null, если
+     * аутентификация не требуется.
+     */
+    public static CredentialStore fromConfig() throws IOException {
+        String file = Config.getCredentialsFile();
+        return file.isEmpty() ? null : new CredentialStore(Path.of(file));
+    }
+
+    /**
+     * Проверяет пару имя/пароль. Безопасно вызывать из любого потока.
+     */
+    public boolean verify(String username, byte[] password) {
+        byte[] expected = credentials.get(username);
+        MessageDigest digest = SHA256.get();
+        byte[] actual = digest.digest(password);
+        boolean matches = MessageDigest.isEqual(expected != null ? expected : ABSENT_DIGEST, actual);
+        return expected != null && matches;
+    }
+
+    /**
+     * Запись файла порождает несколько событий подряд (усечение, запись),
+     * поэтому файл перечитывается один раз, когда события стихнут.
+     */
+    private void watch() {
+        try {
+            while (true) {
+                boolean changed = isFileChanged(watchService.take());
+                WatchKey key;
+                while ((key = watchService.poll(RELOAD_QUIET_MILLIS, TimeUnit.MILLISECONDS)) != null) {
+                    changed |= isFileChanged(key);
+                }
+                if (changed) {
+                    reload();
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // хранилище закрыто
+        }
+    }
+
+    private boolean isFileChanged(WatchKey key) {
+        boolean changed = false;
+        for (WatchEvent<?> event: key.pollEvents()) {
+            if (file.getFileName().equals(event.context())) {
+                changed = true;
+            }
+        }
+        key.reset();
+        return changed;
+    }
+
+    /**
+     * Ошибочный файл не заменяет загруженную таблицу: лучше старые учётные
+     * записи, чем ни одной.
+     */
+    private void reload() {
+        try {
+            credentials = read(file);
+            log.info("Reloaded {} credentials from {}", credentials.size(), file);
+        } catch (IOException | IllegalArgumentException e) {
+            log.warn("Failed to reload credentials, keeping previous ones: " + e.getMessage());
+        }
+    }
+
+    private static Map<String, byte[]> read(Path file) throws IOException {
+        List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+        Map<String, byte[]> table = new HashMap<>(lines.size() * 2);
+        for (int i = 0; i < lines.size(); i++) {
+            String line = lines.get(i).strip();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            int separator = line.indexOf(':');
+            if (separator <= 0) {
+                throw new IllegalArgumentException("Expected username:password at line " + (i + 1) + " of " + file);
+            }
+            String username = line.substring(0, separator);
+            String password = line.substring(separator + 1);
+
+            byte[] digest;
+            if (password.startsWith(SHA256_PREFIX)) {
+                digest = HexFormat.of().parseHex(password.substring(SHA256_PREFIX.length()));
+                if (digest.length != ABSENT_DIGEST.length) {
+                    throw new IllegalArgumentException("Bad SHA-256 digest at line " + (i + 1) + " of " + file);
+                }
+            } else {
+                digest = SHA256.get().digest(password.getBytes(StandardCharsets.UTF_8));
+            }
+            table.put(username, digest);
+        }
+        return Map.copyOf(table);
+    }
+
+    @Override
+    public void close() throws IOException {
+        watchService.close();
+        watcher.interrupt();
+    }
+}
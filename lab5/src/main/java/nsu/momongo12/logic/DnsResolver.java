@@ -0,0 +1,103 @@
+package nsu.momongo12.logic;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Асинхронное разрешение доменных имён вне потоков реакторов.
+ * Удачные и неудачные ответы кэшируются на заданное время, одновременные
+ * запросы одного имени объединяются в один поиск.
+ *
+ * @author momongo12
+ * @version 1.0
+ */
+@Slf4j
+public class DnsResolver implements AutoCloseable {
+
+    private final ExecutorService executor;
+    private final Map<String, CacheEntry> cache = new ConcurrentHashMap<>();
+    private final long positiveTtlMillis;
+    private final long negativeTtlMillis;
+    private final int maxCacheSize;
+
+    public DnsResolver(int threads, long positiveTtlMillis, long negativeTtlMillis, int maxCacheSize) {
+        AtomicInteger threadCounter = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "dns-resolver-" + threadCounter.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.positiveTtlMillis = positiveTtlMillis;
+        this.negativeTtlMillis = negativeTtlMillis;
+        this.maxCacheSize = maxCacheSize;
+    }
+
+    /**
+     * Возвращает адреса хоста. Для закэшированного имени future уже завершена,
+     * и вызывающий может продолжить без перехода в другой поток.
+     */
+    public CompletableFuture<InetAddress[]> resolve(String host) {
+        long now = System.currentTimeMillis();
+        CacheEntry entry = cache.get(host);
+        if (entry != null && entry.expiresAt > now) {
+            return entry.result;
+        }
+
+        if (cache.size() >= maxCacheSize) {
+            evictExpired(now);
+        }
+
+        CacheEntry pending = new CacheEntry(new CompletableFuture<>(), Long.MAX_VALUE);
+        CacheEntry current = cache.compute(host, (key, existing) ->
+                existing != null && existing.expiresAt > now ? existing : pending);
+        if (current != pending) {
+            return current.result;
+        }
+
+        executor.execute(() -> lookup(host, pending));
+        return pending.result;
+    }
+
+    private void lookup(String host, CacheEntry pending) {
+        try {
+            InetAddress[] addresses = InetAddress.getAllByName(host);
+            cache.replace(host, pending, new CacheEntry(pending.result, System.currentTimeMillis() + positiveTtlMillis));
+            pending.result.complete(addresses);
+        } catch (UnknownHostException e) {
+            log.debug("Failed to resolve {}: {}", host, e.getMessage());
+            cache.replace(host, pending, new CacheEntry(pending.result, System.currentTimeMillis() + negativeTtlMillis));
+            pending.result.completeExceptionally(e);
+        } catch (RuntimeException e) {
+            cache.remove(host, pending);
+            pending.result.completeExceptionally(e);
+        }
+    }
+
+    private void evictExpired(long now) {
+        cache.entrySet().removeIf(e -> e.getValue().expiresAt <= now);
+        if (cache.size() >= maxCacheSize) {
+            // кэш забит живыми записями: сбрасываем только завершённые
+            cache.entrySet().removeIf(e -> e.getValue().result.isDone());
+        }
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    private static final class CacheEntry {
+        private final CompletableFuture<InetAddress[]> result;
+        private final long expiresAt;
+
+        private CacheEntry(CompletableFuture<InetAddress[]> result, long expiresAt) {
+            this.result = result;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package nsu.momongo12.logic;
+
+import nsu.momongo12.config.Config;
+
+import java.io.IOException;
+
+/**
+ * Прокси-сервер, независимо от модели выполнения.
+ *
+ * @author momongo12
+ * @version 1.0
+ */
+public interface ProxyServer extends AutoCloseable {
+
+    /**
+     * Запускает приём соединений и не возвращается, пока сервер не остановлен.
+     */
+    void start() throws IOException;
+
+    /**
+     * Плавная остановка: сервер перестаёт принимать соединения и ждёт
+     * завершения открытых, но не дольше {@code shutdown.drain.timeout.seconds},
+     * после чего {@link #start()} возвращается. Можно вызывать из любого потока.
+     */
+    void drain();
+
+    static ProxyServer create() throws IOException {
+        return switch (Config.getExecutionMode()) {
+            case REACTOR -> new Socks5Server();
+            case VIRTUAL -> new VirtualThreadServer();
+        };
+    }
+}
@@ -0,0 +1,23 @@
+package nsu.momongo12.logic;
+
+import java.io.IOException;
+
+/**
+ * Нарушение протокола SOCKS5 со стороны клиента, несёт код ответа для него.
+ *
+ * @author momongo12
+ * @version 1.0
+ */
+public class Socks5Exception extends IOException {
+
+    private final byte replyCode;
+
+    public Socks5Exception(String message, byte replyCode) {
+        super(message);
+        this.replyCode = replyCode;
+    }
+
+    public byte getReplyCode() {
+        return replyCode;
+    }
+}
@@ -0,0 +1,266 @@
+package nsu.momongo12.logic;
+
+import nsu.momongo12.config.Socks5Constants;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Инкрементальный разбор рукопожатия SOCKS5 одного соединения. Байты
+ * накапливаются в небольшом буфере между событиями чтения, поэтому сообщение,
+ * разбитое TCP на части, разбирается после прихода последней части, а
+ * приветствие и запрос, пришедшие одним пакетом, - за один проход.
+ * Байты, пришедшие после запроса, остаются в буфере до установки туннеля.
+ *
+ * @author momongo12
+ * @version 1.0
+ */
+public class Socks5HandshakeParser {
+
+    /**
+     * Хватает на приветствие (до 257 байт), имя и пароль (до 513 байт) или
+     * запрос (до 262 байт) целиком.
+     */
+    public static final int SCRATCH_BUFFER_SIZE = 1024;
+
+    public enum Result { NEED_MORE_DATA, GREETING, AUTHENTICATION, REQUEST }
+
+    private enum State { READ_GREETING, READ_AUTHENTICATION, READ_REQUEST, DONE }
+
+    private final ByteBuffer buffer = ByteBuffer.allocate(SCRATCH_BUFFER_SIZE);
+    private State state = State.READ_GREETING;
+
+    // методы аутентификации 0x00-0x3F, предложенные клиентом
+    private long offeredMethods;
+
+    private String username;
+    private byte[] password;
+
+    private byte command;
+    private byte addressType;
+    private int ipv4Address;
+    private String domain;
+    private int port;
+
+    /**
+     * Буфер в режиме записи, в него читаются данные из канала.
+     */
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * Разбирает следующее ожидаемое сообщение, если оно уже пришло целиком.
+     * Вызывать в цикле, пока не вернётся {@link Result#NEED_MORE_DATA}.
+     */
+    public Result parse() throws Socks5Exception {
+        buffer.flip();
+        try {
+            switch (state) {
+                case READ_GREETING:
+                    return parseGreeting();
+                case READ_AUTHENTICATION:
+                    return parseAuthentication();
+                case READ_REQUEST:
+                    return parseRequest();
+                default:
+                    return Result.NEED_MORE_DATA;
+            }
+        } finally {
+            buffer.compact();
+        }
+    }
+
+    private Result parseGreeting() throws Socks5Exception {
+        if (buffer.remaining() < 2) {
+            return Result.NEED_MORE_DATA;
+        }
+        int start = buffer.position();
+        if (buffer.get(start) != Socks5Constants.SOCKS_VERSION) {
+            throw new Socks5Exception("Unsupported SOCKS version: " + buffer.get(start),
+                    Socks5Constants.RESPONSE_GENERAL_FAILURE);
+        }
+        int numMethods = buffer.get(start + 1) & 0xFF;
+        if (buffer.remaining() < 2 + numMethods) {
+            return Result.NEED_MORE_DATA;
+        }
+
+        offeredMethods = 0;
+        for (int i = 0; i < numMethods; i++) {
+            int method = buffer.get(start + 2 + i) & 0xFF;
+            if (method < Long.SIZE) {
+                offeredMethods |= 1L << method;
+            }
+        }
+        buffer.position(start + 2 + numMethods);
+        state = State.READ_REQUEST;
+        return Result.GREETING;
+    }
+
+    /**
+     * Выбран метод аутентификации по имени и паролю: следующим сообщением
+     * ожидается согласование RFC 1929, а не запрос.
+     */
+    public void expectAuthentication() {
+        state = State.READ_AUTHENTICATION;
+    }
+
+    /**
+     * Согласование по RFC 1929: VER ULEN UNAME PLEN PASSWD.
+     */
+    private Result parseAuthentication() throws Socks5Exception {
+        if (buffer.remaining() < 2) {
+            return Result.NEED_MORE_DATA;
+        }
+        int start = buffer.position();
+        if (buffer.get(start) != Socks5Constants.AUTH_VERSION) {
+            throw new Socks5Exception("Unsupported authentication version: " + buffer.get(start),
+                    Socks5Constants.RESPONSE_GENERAL_FAILURE);
+        }
+        int usernameLength = buffer.get(start + 1) & 0xFF;
+        if (buffer.remaining() < 3 + usernameLength) {
+            return Result.NEED_MORE_DATA;
+        }
+        int passwordLength = buffer.get(start + 2 + usernameLength) & 0xFF;
+        int messageLength = 3 + usernameLength + passwordLength;
+        if (buffer.remaining() < messageLength) {
+            return Result.NEED_MORE_DATA;
+        }
+
+        username = new String(buffer.array(), buffer.arrayOffset() + start + 2, usernameLength,
+                StandardCharsets.UTF_8);
+        password = new byte[passwordLength];
+        buffer.get(start + 3 + usernameLength, password);
+        // пароль не должен задерживаться в буфере рукопожатия
+        Arrays.fill(buffer.array(), buffer.arrayOffset() + start + 3 + usernameLength,
+                buffer.arrayOffset() + start + messageLength, (byte) 0);
+
+        buffer.position(start + messageLength);
+        state = State.READ_REQUEST;
+        return Result.AUTHENTICATION;
+    }
+
+    private Result parseRequest() throws Socks5Exception {
+        if (buffer.remaining() < 4) {
+            return Result.NEED_MORE_DATA;
+        }
+        int start = buffer.position();
+        if (buffer.get(start) != Socks5Constants.SOCKS_VERSION) {
+            throw new Socks5Exception("Unsupported SOCKS version: " + buffer.get(start),
+                    Socks5Constants.RESPONSE_GENERAL_FAILURE);
+        }
+
+        byte requestAddressType = buffer.get(start + 3);
+        int addressLength;
+        if (requestAddressType == Socks5Constants.ADDRESS_TYPE_IPV4) {
+            addressLength = Socks5Constants.IPV4_ADDRESS_LENGTH;
+        } else if (requestAddressType == Socks5Constants.ADDRESS_TYPE_DOMAIN) {
+            if (buffer.remaining() < 5) {
+                return Result.NEED_MORE_DATA;
+            }
+            addressLength = 1 + (buffer.get(start + 4) & 0xFF);
+        } else {
+            throw new Socks5Exception("Unsupported address type: " + requestAddressType,
+                    Socks5Constants.RESPONSE_ADDRESS_TYPE_NOT_SUPPORTED);
+        }
+        // VER CMD RSV ATYP | адрес | порт
+        int messageLength = 4 + addressLength + 2;
+        if (buffer.remaining() < messageLength) {
+            return Result.NEED_MORE_DATA;
+        }
+
+        command = buffer.get(start + 1);
+        addressType = requestAddressType;
+        if (addressType == Socks5Constants.ADDRESS_TYPE_IPV4) {
+            ipv4Address = buffer.getInt(start + 4);
+            domain = null;
+        } else {
+            domain = new String(buffer.array(), buffer.arrayOffset() + start + 5, addressLength - 1,
+                    StandardCharsets.US_ASCII);
+        }
+        port = buffer.getShort(start + 4 + addressLength) & 0xFFFF;
+
+        buffer.position(start + messageLength);
+        state = State.DONE;
+        return Result.REQUEST;
+    }
+
+    public boolean isMethodOffered(byte method) {
+        int value = method & 0xFF;
+        return value < Long.SIZE && (offeredMethods & (1L << value)) != 0;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public byte[] getPassword() {
+        return password;
+    }
+
+    /**
+     * Затирает пароль после проверки.
+     */
+    public void clearPassword() {
+        if (password != null) {
+            Arrays.fill(password, (byte) 0);
+            password = null;
+        }
+    }
+
+    public byte getCommand() {
+        return command;
+    }
+
+    public byte getAddressType() {
+        return addressType;
+    }
+
+    public byte[] getIpv4AddressBytes() {
+        return new byte[] {
+                (byte) (ipv4Address >>> 24), (byte) (ipv4Address >>> 16),
+                (byte) (ipv4Address >>> 8), (byte) ipv4Address
+        };
+    }
+
+    /**
+     * Адрес назначения из запроса: доменное имя или IPv4 в десятичной записи.
+     */
+    public String getHost() {
+        if (domain != null) {
+            return domain;
+        }
+        return (ipv4Address >>> 24) + "." + ((ipv4Address >>> 16) & 0xFF) + "."
+                + ((ipv4Address >>> 8) & 0xFF) + "." + (ipv4Address & 0xFF);
+    }
+
+    public String getDomain() {
+        return domain;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * Сколько байт клиент прислал сверх разобранных сообщений.
+     */
+    public int getPendingBytes() {
+        return buffer.position();
+    }
+
+    /**
+     * Переносит в target столько необработанных байт, сколько в него поместится.
+     */
+    public int transferPending(ByteBuffer target) {
+        buffer.flip();
+        int count = Math.min(buffer.remaining(), target.remaining());
+        int limit = buffer.limit();
+        buffer.limit(buffer.position() + count);
+        target.put(buffer);
+        buffer.limit(limit);
+        buffer.compact();
+        return count;
+    }
+}
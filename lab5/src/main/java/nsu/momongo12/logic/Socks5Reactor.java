@@ -0,0 +1,505 @@
+package nsu.momongo12.logic;
+
+import lombok.extern.slf4j.Slf4j;
+import nsu.momongo12.config.Config;
+import nsu.momongo12.config.RelayMode;
+import nsu.momongo12.metrics.ProxyMetrics;
+import nsu.momongo12.metrics.ReactorStats;
+import nsu.momongo12.metrics.TunnelStats;
+import nsu.momongo12.model.ChannelPair;
+import nsu.momongo12.model.RelayQueue;
+import nsu.momongo12.model.UdpAssociation;
+
+import java.io.IOException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+
+/**
+ * Рабочий цикл событий: собственный {@link Selector} и поток, который ведёт
+ * принятые соединения от рукопожатия до закрытия туннеля.
+ *
+ * @author momongo12
+ * @version 1.0
+ */
+@Slf4j
+public class Socks5Reactor implements Runnable, Executor, AutoCloseable {
+
+    private final int id;
+    private final Selector selector;
+    private final ProxyMetrics metrics;
+    private final RelayMode relayMode;
+    private final BufferPool bufferPool;
+    private final TimerWheel timerWheel;
+    private final long handshakeTimeoutMillis;
+    private final int relayHighWatermark;
+    private final int relayLowWatermark;
+    private final UdpRelay udpRelay;
+    private final UpstreamPool upstreamPool;
+    private final Socks5Service socks5Service;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final Thread thread;
+
+    private volatile boolean closed;
+
+    public Socks5Reactor(int id, DnsResolver dnsResolver, ProxyMetrics metrics,
+                         CredentialStore credentialStore, TrafficShaper trafficShaper) throws IOException {
+        this.id = id;
+        this.metrics = metrics;
+        selector = Selector.open();
+        relayMode = Config.getRelayMode();
+        bufferPool = new BufferPool(Config.getBufferSize(), Config.getBufferPoolSize());
+        timerWheel = new TimerWheel(Config.getTimerTickMillis(), Config.getTimerWheelSize(), System.currentTimeMillis());
+        handshakeTimeoutMillis = Config.getHandshakeTimeoutMillis();
+        relayHighWatermark = Config.getRelayHighWatermark();
+        relayLowWatermark = Config.getRelayLowWatermark();
+        udpRelay = new UdpRelay(selector, this, dnsResolver, timerWheel, metrics, Config.getUdpNatMaxEntries(),
+                Config.getUdpIdleTimeoutMillis(), Config.getUdpReceiveBatchSize(), Config.getDnsCacheTtlMillis(),
+                Config.getDnsCacheSize());
+        upstreamPool = new UpstreamPool(selector, this, dnsResolver, timerWheel, Config.getUpstreamPoolDestinations(),
+                Config.getUpstreamPoolSize(), Config.getUpstreamPoolMaxIdleMillis());
+        socks5Service = new Socks5Service(selector, bufferPool, this, dnsResolver, udpRelay,
+                timerWheel, metrics, upstreamPool, credentialStore, trafficShaper);
+        thread = new Thread(this, "socks5-reactor-" + id);
+    }
+
+    public void start() {
+        execute(upstreamPool::start);
+        thread.start();
+    }
+
+    /**
+     * Передаёт принятое соединение в этот реактор. Регистрация в селекторе
+     * выполняется в потоке реактора.
+     */
+    public void register(SocketChannel client) {
+        execute(() -> {
+            try {
+                client.configureBlocking(false);
+                client.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                metrics.recordAccepted();
+                ChannelPair channelPair = new ChannelPair(client, null, bufferPool, relayHighWatermark, relayLowWatermark);
+                channelPair.setAcceptedAt(System.nanoTime());
+                channelPair.setHandshake(new Socks5HandshakeParser());
+                client.register(selector, SelectionKey.OP_READ, channelPair);
+                channelPair.setTimeout(timerWheel.schedule(handshakeTimeoutMillis, () -> {
+                    log.debug("Handshake timed out: {}", getClientAddress(client));
+                    closeQuietly(channelPair);
+                }));
+                log.debug("Client connected: {}", getClientAddress(client));
+            } catch (IOException e) {
+                log.warn("Failed to register client: " + e.getMessage());
+                closeChannel(client);
+            }
+        });
+    }
+
+    /**
+     * Плавная остановка: открытые соединения дорабатывают, пул к серверам
+     * больше не пополняется.
+     */
+    public void drain() {
+        execute(upstreamPool::close);
+    }
+
+    /**
+     * Снимок состояния реактора, собирается в его потоке.
+     */
+    public CompletableFuture<ReactorStats> snapshot(boolean withTunnels) {
+        CompletableFuture<ReactorStats> result = new CompletableFuture<>();
+        execute(() -> result.complete(collectStats(withTunnels)));
+        return result;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!closed) {
+                // спим до следующего тика колеса, а без таймаутов - до событий
+                long selectTimeout = timerWheel.getSelectTimeout(System.currentTimeMillis());
+                if (selectTimeout > 0) {
+                    selector.select(selectTimeout);
+                } else {
+                    selector.select();
+                }
+                timerWheel.advance(System.currentTimeMillis());
+                runTasks();
+
+                for (SelectionKey key: selector.selectedKeys()) {
+                    try {
+                        if (key.attachment() instanceof UdpAssociation) {
+                            if (key.isValid() && key.isReadable()) {
+                                udpRelay.handleRead(key);
+                            }
+                            continue;
+                        }
+                        if (key.attachment() instanceof ConnectRace) {
+                            // выигравшая попытка получает attachment туннеля и дальше обрабатывается как он
+                            if (key.isValid() && key.isConnectable()) {
+                                socks5Service.handleConnectAttempt(key);
+                            }
+                            continue;
+                        }
+                        if (key.attachment() instanceof UpstreamPool.Entry) {
+                            if (key.isValid()) {
+                                upstreamPool.handleEvent(key);
+                            }
+                            continue;
+                        }
+                        // чтение и запись независимы: ключ может быть готов к обоим
+                        if (key.isValid() && key.isReadable()) {
+                            handleRead(key);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            handleWrite(key);
+                        }
+                    } catch (IOException e) {
+                        log.warn("IOException in selector loop: " + e.getMessage());
+                        key.cancel();
+                        if (key.attachment() instanceof ChannelPair) {
+                            ((ChannelPair) key.attachment()).close();
+                        } else if (key.attachment() instanceof ConnectRace) {
+                            ((ConnectRace) key.attachment()).getChannelPair().close();
+                        } else if (key.attachment() instanceof UdpAssociation) {
+                            ((UdpAssociation) key.attachment()).getControlPair().close();
+                        }
+                        closeChannel(key.channel());
+                    }
+                }
+                selector.selectedKeys().clear();
+            }
+        } catch (ClosedSelectorException e) {
+            log.debug("Selector closed");
+        } catch (IOException e) {
+            log.error("Reactor loop failed", e);
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            task.run();
+        }
+    }
+
+    private void handleRead(SelectionKey key) throws IOException {
+        SocketChannel sourceChannel = (SocketChannel) key.channel();
+        ChannelPair channelPair = (ChannelPair) key.attachment();
+
+        RelayQueue writeQueue;
+        SocketChannel targetChannel;
+
+        if (channelPair.getUdpAssociation() != null) {
+            handleUdpControlRead(sourceChannel, channelPair);
+            return;
+        } else if (channelPair.getServerChannel() == null) {
+            socks5Service.handleHandshake(sourceChannel, key, channelPair);
+            return;
+        }
+        channelPair.setLastActivity(timerWheel.getCurrentTime());
+
+        if (sourceChannel == channelPair.getClientChannel()) {
+            writeQueue = channelPair.getClientToServerQueue();
+            targetChannel = channelPair.getServerChannel();
+        } else {
+            writeQueue = channelPair.getServerToClientQueue();
+            targetChannel = channelPair.getClientChannel();
+        }
+
+        if (relayMode == RelayMode.SPLICE) {
+            spliceRead(key, channelPair, sourceChannel, writeQueue, targetChannel);
+            return;
+        }
+
+        ByteBuffer readBuffer = bufferPool.acquire();
+        int bytesRead;
+        try {
+            bytesRead = sourceChannel.read(readBuffer);
+        } catch (IOException e) {
+            bufferPool.release(readBuffer);
+            throw e;
+        }
+        if (bytesRead <= 0) {
+            bufferPool.release(readBuffer);
+            if (bytesRead == -1) {
+                handleSourceClosed(key, channelPair, writeQueue, targetChannel);
+            }
+            return;
+        }
+
+        countRelayed(channelPair, writeQueue, bytesRead);
+        throttle(key, channelPair, writeQueue, bytesRead);
+        readBuffer.flip();
+        writeQueue.add(readBuffer);
+        if (targetChannel.isConnected()) {
+            addInterest(targetChannel.keyFor(selector), SelectionKey.OP_WRITE);
+        }
+        if (writeQueue.isAboveHighWatermark()) {
+            removeInterest(key, SelectionKey.OP_READ);
+        }
+    }
+
+    private void handleWrite(SelectionKey key) throws IOException {
+        SocketChannel targetChannel = (SocketChannel) key.channel();
+        ChannelPair channelPair = (ChannelPair) key.attachment();
+
+        RelayQueue writeQueue;
+        SocketChannel sourceChannel;
+        if (targetChannel == channelPair.getServerChannel()) {
+            writeQueue = channelPair.getClientToServerQueue();
+            sourceChannel = channelPair.getClientChannel();
+        } else {
+            writeQueue = channelPair.getServerToClientQueue();
+            sourceChannel = channelPair.getServerChannel();
+        }
+        channelPair.setLastActivity(timerWheel.getCurrentTime());
+
+        while (!writeQueue.isEmpty()) {
+            ByteBuffer buffer = writeQueue.peek();
+            writeQueue.consumed(targetChannel.write(buffer));
+            if (buffer.hasRemaining()) {
+                break;
+            }
+            ByteBuffer drained = writeQueue.poll();
+            if (writeQueue.isSpliceBuffer(drained)) {
+                drained.clear();
+            } else {
+                bufferPool.release(drained);
+            }
+        }
+
+        if (writeQueue.isEmpty()) {
+            removeInterest(key, SelectionKey.OP_WRITE);
+            if (writeQueue.isSourceClosed()) {
+                targetChannel.shutdownOutput();
+                if (channelPair.isFinished()) {
+                    channelPair.close();
+                }
+                return;
+            }
+        }
+        if (canResumeRead(writeQueue)) {
+            addInterest(sourceChannel.keyFor(selector), SelectionKey.OP_READ);
+        }
+    }
+
+    /**
+     * Чтение из источника возобновляется, когда очередь к цели опустилась до
+     * нижней отметки, а в режиме {@code SPLICE} - опустела, ведь буфер у
+     * направления один. Пока действует ограничение скорости, чтение не
+     * возобновляется.
+     */
+    private boolean canResumeRead(RelayQueue writeQueue) {
+        if (writeQueue.isSourceClosed() || writeQueue.isThrottled()) {
+            return false;
+        }
+        return relayMode == RelayMode.SPLICE ? writeQueue.isEmpty() : writeQueue.isBelowLowWatermark();
+    }
+
+    /**
+     * Списывает прочитанное с корзин туннеля. Если долг превысил всплеск,
+     * чтение из источника приостанавливается, пока он не погасится.
+     */
+    private void throttle(SelectionKey sourceKey, ChannelPair channelPair, RelayQueue writeQueue, int bytes) {
+        TrafficShaper.Bucket[] rateLimits = channelPair.getRateLimits();
+        if (rateLimits == null) {
+            return;
+        }
+        long delayNanos = TrafficShaper.charge(rateLimits, bytes, System.nanoTime());
+        if (delayNanos == 0) {
+            return;
+        }
+
+        metrics.recordThrottled();
+        writeQueue.setThrottled(true);
+        removeInterest(sourceKey, SelectionKey.OP_READ);
+        long delayMillis = (delayNanos + 999_999) / 1_000_000;
+        timerWheel.schedule(delayMillis, () -> {
+            writeQueue.setThrottled(false);
+            if (canResumeRead(writeQueue)) {
+                addInterest(sourceKey, SelectionKey.OP_READ);
+            }
+        });
+    }
+
+    /**
+     * По управляющему соединению UDP ASSOCIATE данных не ждём, важно только
+     * его закрытие: вместе с ним закрывается ассоциация.
+     */
+    private void handleUdpControlRead(SocketChannel controlChannel, ChannelPair channelPair) throws IOException {
+        ByteBuffer discard = bufferPool.acquire();
+        try {
+            if (controlChannel.read(discard) == -1) {
+                channelPair.close();
+            }
+        } finally {
+            bufferPool.release(discard);
+        }
+    }
+
+    /**
+     * Чтение в постоянный буфер направления и немедленная запись в парный канал.
+     * Если парный канал принял не всё, остаток ставится в очередь и чтение из
+     * источника приостанавливается до тех пор, пока handleWrite его не допишет.
+     */
+    private void spliceRead(SelectionKey key, ChannelPair channelPair, SocketChannel sourceChannel,
+                            RelayQueue writeQueue, SocketChannel targetChannel) throws IOException {
+        ByteBuffer buffer = writeQueue.getSpliceBuffer(bufferPool);
+        int bytesRead = sourceChannel.read(buffer);
+        if (bytesRead <= 0) {
+            if (bytesRead == -1) {
+                handleSourceClosed(key, channelPair, writeQueue, targetChannel);
+            }
+            return;
+        }
+        countRelayed(channelPair, writeQueue, bytesRead);
+        throttle(key, channelPair, writeQueue, bytesRead);
+
+        buffer.flip();
+        boolean connected = targetChannel.isConnected();
+        if (connected) {
+            targetChannel.write(buffer);
+        }
+        if (!buffer.hasRemaining()) {
+            buffer.clear();
+            return;
+        }
+
+        writeQueue.add(buffer);
+        removeInterest(key, SelectionKey.OP_READ);
+        if (connected) {
+            addInterest(targetChannel.keyFor(selector), SelectionKey.OP_WRITE);
+        }
+    }
+
+    /**
+     * Источник закрыл запись: перестаём из него читать, а в целевой канал
+     * передаём EOF после того, как выпишем накопленное.
+     */
+    private void handleSourceClosed(SelectionKey sourceKey, ChannelPair channelPair,
+                                    RelayQueue writeQueue, SocketChannel targetChannel) throws IOException {
+        writeQueue.markSourceClosed();
+        removeInterest(sourceKey, SelectionKey.OP_READ);
+
+        if (!targetChannel.isConnected()) {
+            channelPair.close();
+        } else if (writeQueue.isEmpty()) {
+            targetChannel.shutdownOutput();
+            if (channelPair.isFinished()) {
+                channelPair.close();
+            }
+        }
+    }
+
+    private void countRelayed(ChannelPair channelPair, RelayQueue writeQueue, int bytes) {
+        writeQueue.recordRelayed(bytes);
+        if (writeQueue == channelPair.getClientToServerQueue()) {
+            metrics.recordClientToServer(bytes);
+        } else {
+            metrics.recordServerToClient(bytes);
+        }
+    }
+
+    private ReactorStats collectStats(boolean withTunnels) {
+        ReactorStats stats = new ReactorStats(id);
+        stats.setPendingTimers(timerWheel.getPendingCount());
+        stats.setBufferPoolHits(bufferPool.getHits());
+        stats.setBufferPoolMisses(bufferPool.getMisses());
+
+        for (SelectionKey key: selector.keys()) {
+            // у туннеля два ключа, считаем его по клиентскому
+            if (!key.isValid() || !(key.attachment() instanceof ChannelPair channelPair)
+                    || key.channel() != channelPair.getClientChannel()) {
+                continue;
+            }
+
+            if (channelPair.getUdpAssociation() != null) {
+                stats.setUdpAssociations(stats.getUdpAssociations() + 1);
+            } else if (channelPair.getConnectRace() != null) {
+                stats.setConnectingTunnels(stats.getConnectingTunnels() + 1);
+            } else if (channelPair.getServerChannel() == null) {
+                stats.setHandshaking(stats.getHandshaking() + 1);
+            } else if (!channelPair.getServerChannel().isConnected()) {
+                stats.setConnectingTunnels(stats.getConnectingTunnels() + 1);
+            } else {
+                RelayQueue up = channelPair.getClientToServerQueue();
+                RelayQueue down = channelPair.getServerToClientQueue();
+                stats.setActiveTunnels(stats.getActiveTunnels() + 1);
+                stats.setQueuedClientToServer(stats.getQueuedClientToServer() + up.getQueuedBytes());
+                stats.setQueuedServerToClient(stats.getQueuedServerToClient() + down.getQueuedBytes());
+                if (withTunnels) {
+                    stats.getTunnels().add(new TunnelStats(getClientAddress(channelPair.getClientChannel()),
+                            getClientAddress(channelPair.getServerChannel()), up.getRelayedBytes(),
+                            down.getRelayedBytes(), up.getQueuedBytes(), down.getQueuedBytes(),
+                            timerWheel.getCurrentTime() - channelPair.getLastActivity()));
+                }
+            }
+        }
+        return stats;
+    }
+
+    private void addInterest(SelectionKey key, int ops) {
+        if (key != null && key.isValid() && (key.interestOps() & ops) != ops) {
+            key.interestOps(key.interestOps() | ops);
+        }
+    }
+
+    private void removeInterest(SelectionKey key, int ops) {
+        if (key != null && key.isValid() && (key.interestOps() & ops) != 0) {
+            key.interestOps(key.interestOps() & ~ops);
+        }
+    }
+
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    private void closeChannel(Channel channel) {
+        if (channel != null && channel.isOpen()) {
+            try {
+                channel.close();
+            } catch (IOException ex) {
+                log.error("Failed to close channel: " + ex.getMessage());
+            }
+        }
+    }
+
+    private void closeQuietly(ChannelPair channelPair) {
+        try {
+            channelPair.close();
+        } catch (IOException e) {
+            log.warn("Failed to close channel pair: " + e.getMessage());
+        }
+    }
+
+    private String getClientAddress(SocketChannel client) {
+        try {
+            return client.getRemoteAddress().toString();
+        } catch (IOException e) {
+            return "Unknown";
+        }
+    }
+
+    @Override
+    public void close() throws Exception {
+        closed = true;
+        selector.wakeup();
+        thread.join();
+
+        for (SelectionKey key: selector.keys()) {
+            closeChannel(key.channel());
+        }
+        selector.close();
+        socks5Service.close();
+    }
+}
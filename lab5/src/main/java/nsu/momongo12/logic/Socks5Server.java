@@ -2,155 +2,152 @@ package nsu.momongo12.logic;
 
 import lombok.extern.slf4j.Slf4j;
 import nsu.momongo12.config.Config;
-import nsu.momongo12.model.ChannelPair;
+import nsu.momongo12.metrics.MetricsServer;
+import nsu.momongo12.metrics.ProxyMetrics;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.nio.ByteBuffer;
+import java.net.StandardSocketOptions;
 import java.nio.channels.*;
-import java.util.Queue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
+ * Принимающий поток: слушает порт и раздаёт новые соединения рабочим
+ * реакторам по кругу. Каждое соединение до закрытия обслуживает один реактор.
+ *
  * @author momongo12
  * @version 1.0
  */
 @Slf4j
-public class Socks5Server implements AutoCloseable {
+public class Socks5Server implements ProxyServer {
+
+    private static final long DRAIN_POLL_MILLIS = 100;
 
-    private final Socks5Service socks5Service;
     private final Selector selector;
     private final ServerSocketChannel serverSocketChannel;
+    private final DnsResolver dnsResolver;
+    private final CredentialStore credentialStore;
+    private final Socks5Reactor[] reactors;
+    private final MetricsServer metricsServer;
+    private final long drainTimeoutMillis;
+    private int nextReactor;
+    private volatile boolean draining;
 
     public Socks5Server() throws IOException {
+        dnsResolver = new DnsResolver(Config.getDnsResolverThreads(), Config.getDnsCacheTtlMillis(),
+                Config.getDnsNegativeCacheTtlMillis(), Config.getDnsCacheSize());
+        credentialStore = CredentialStore.fromConfig();
+        TrafficShaper trafficShaper = TrafficShaper.fromConfig();
+        ProxyMetrics metrics = new ProxyMetrics();
+        reactors = new Socks5Reactor[Config.getWorkerCount()];
+        for (int i = 0; i < reactors.length; i++) {
+            reactors[i] = new Socks5Reactor(i, dnsResolver, metrics, credentialStore, trafficShaper);
+        }
+        metricsServer = Config.getMetricsPort() > 0 ? new MetricsServer(Config.getMetricsBindAddress(),
+                Config.getMetricsPort(), metrics, reactors) : null;
+
         selector = Selector.open();
         serverSocketChannel = ServerSocketChannel.open();
+        drainTimeoutMillis = Config.getDrainTimeoutMillis();
 
+        if (Config.isServerReusePort()) {
+            if (serverSocketChannel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+                serverSocketChannel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            } else {
+                log.warn("SO_REUSEPORT is not supported on this platform");
+            }
+        }
         serverSocketChannel.bind(new InetSocketAddress(Config.getServerPort()));
         serverSocketChannel.configureBlocking(false);
         serverSocketChannel.register(selector, SelectionKey.OP_ACCEPT);
 
-        socks5Service = new Socks5Service(selector);
-        log.info("SOCKS5 server started and listen port: {}", Config.getServerPort());
+        log.info("SOCKS5 server started and listen port: {}, workers: {}", Config.getServerPort(), reactors.length);
     }
 
+    @Override
     public void start() throws IOException {
-        while (true) {
+        for (Socks5Reactor reactor: reactors) {
+            reactor.start();
+        }
+        if (metricsServer != null) {
+            metricsServer.start();
+        }
+
+        while (!draining) {
             selector.select();
 
             for (SelectionKey key: selector.selectedKeys()) {
-                try {
-                    if (key.isValid()) {
-                        if (key.isAcceptable()) {
-                            handleAccept(key);
-                        } else if (key.isReadable()) {
-                            handleRead(key);
-                        } else if (key.isWritable()) {
-                            handleWrite(key);
-                        } else if (key.isConnectable()) {
-                            handleConnect(key);
-                        }
-                    }
-                } catch (IOException e) {
-                    log.warn("IOException in selector loop: " + e.getMessage());
-                    key.cancel();
-                    ((ChannelPair) key.attachment()).close();
-
-                    Channel channel = key.channel();
-                    if (channel != null && channel.isOpen()) {
-                        try {
-                            channel.close();
-                        } catch (IOException ex) {
-                            log.error("Failed to close channel: " + ex.getMessage());
-                        }
-                    }
+                if (key.isValid() && key.isAcceptable()) {
+                    handleAccept(key);
                 }
             }
             selector.selectedKeys().clear();
         }
-    }
 
-    private void handleAccept(SelectionKey selectionKey) throws IOException {
-        SocketChannel client = ((ServerSocketChannel) selectionKey.channel()).accept();
-        if (client == null) {
-            return;
-        }
-        client.configureBlocking(false);
-        client.register(selectionKey.selector(), SelectionKey.OP_READ);
-        log.debug("Client connected: {}", getClientAddress(client));
+        // соединения, уже принятые ядром, обслуживаем: при закрытии сокета они бы сбросились
+        handleAccept(serverSocketChannel.keyFor(selector));
+        serverSocketChannel.close();
+        // зарегистрированный канал закрывается по-настоящему только при следующей выборке
+        selector.selectNow();
+        log.info("Stopped accepting connections, draining");
+        awaitDrained();
     }
 
-    private void handleConnect(SelectionKey key) throws IOException {
-        SocketChannel serverChannel = (SocketChannel) key.channel();
-
-        if (serverChannel.finishConnect()) {
-            key.interestOps(SelectionKey.OP_READ);
-            log.debug("Tunnel to {} active", getClientAddress(serverChannel));
-        }
+    @Override
+    public void drain() {
+        draining = true;
+        selector.wakeup();
     }
 
-    private void handleRead(SelectionKey key) throws IOException {
-        SocketChannel sourceChannel = (SocketChannel) key.channel();
-        ChannelPair channelPair = (ChannelPair) key.attachment();
-
-        Queue<ByteBuffer> writeQueue;
-        SocketChannel targetChannel;
-
-        if (channelPair == null) {
-            socks5Service.handleAuthentication(sourceChannel, key);
-            return;
-        } else if (channelPair.getServerChannel() == null) {
-            socks5Service.establishConnection(sourceChannel, key);
-            return;
-        }
-
-        if (sourceChannel == channelPair.getClientChannel()) {
-            writeQueue = channelPair.getClientToServerQueue();
-            targetChannel = channelPair.getServerChannel();
-        } else {
-            writeQueue = channelPair.getServerToClientQueue();
-            targetChannel = channelPair.getClientChannel();
+    private void awaitDrained() {
+        for (Socks5Reactor reactor: reactors) {
+            reactor.drain();
         }
 
-        ByteBuffer readBuffer = ByteBuffer.allocate(Config.getBufferSize());
-        int bytesRead = sourceChannel.read(readBuffer);
-        if (bytesRead == -1) {
-            channelPair.close();
-            return;
+        long deadline = System.currentTimeMillis() + drainTimeoutMillis;
+        int open = countOpenConnections();
+        while (open > 0 && System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(DRAIN_POLL_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            open = countOpenConnections();
         }
 
-        readBuffer.flip();
-        writeQueue.add(readBuffer);
-        targetChannel.keyFor(selector).interestOps(SelectionKey.OP_WRITE);
-    }
-
-    private void handleWrite(SelectionKey key) throws IOException {
-        SocketChannel targetChannel = (SocketChannel) key.channel();
-        ChannelPair channelPair = (ChannelPair) key.attachment();
-
-        Queue<ByteBuffer> writeQueue;
-        if (targetChannel == channelPair.getServerChannel()) {
-            writeQueue = channelPair.getClientToServerQueue();
+        if (open > 0) {
+            log.warn("Drain timed out, closing {} open connections", open);
         } else {
-            writeQueue = channelPair.getServerToClientQueue();
+            log.info("All connections drained");
         }
+    }
 
-        while (!writeQueue.isEmpty()) {
-            ByteBuffer buffer = writeQueue.peek();
-            targetChannel.write(buffer);
-            if (buffer.hasRemaining()) {
-                return;
+    private int countOpenConnections() {
+        int open = 0;
+        for (Socks5Reactor reactor: reactors) {
+            try {
+                open += reactor.snapshot(false).get(DRAIN_POLL_MILLIS, TimeUnit.MILLISECONDS).getOpenConnections();
+            } catch (ExecutionException | TimeoutException e) {
+                // состояние неизвестно - считаем, что соединения ещё есть
+                log.warn("Failed to get reactor state: " + e);
+                open++;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return open;
             }
-            writeQueue.poll();
         }
-
-        key.interestOps(SelectionKey.OP_READ);
+        return open;
     }
 
-    private String getClientAddress(SocketChannel client) {
-        try {
-            return client.getRemoteAddress().toString();
-        } catch (IOException e) {
-            return "Unknown";
+    private void handleAccept(SelectionKey selectionKey) throws IOException {
+        ServerSocketChannel server = (ServerSocketChannel) selectionKey.channel();
+        SocketChannel client;
+        while ((client = server.accept()) != null) {
+            reactors[nextReactor].register(client);
+            nextReactor = (nextReactor + 1) % reactors.length;
         }
     }
 
@@ -158,8 +155,23 @@ public class Socks5Server implements AutoCloseable {
     public void close() throws Exception {
         selector.close();
         serverSocketChannel.close();
-        socks5Service.close();
+        if (metricsServer != null) {
+            metricsServer.close();
+        }
+        long poolHits = 0;
+        long poolMisses = 0;
+        for (Socks5Reactor reactor: reactors) {
+            reactor.close();
+            poolHits += reactor.getBufferPool().getHits();
+            poolMisses += reactor.getBufferPool().getMisses();
+        }
+
+        dnsResolver.close();
+        if (credentialStore != null) {
+            credentialStore.close();
+        }
 
+        log.info("Buffer pool hits: {}, misses: {}", poolHits, poolMisses);
         log.info("Socks5 server shutdown");
     }
 }
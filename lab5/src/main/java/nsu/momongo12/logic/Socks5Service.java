@@ -3,15 +3,21 @@ package nsu.momongo12.logic;
 import lombok.extern.slf4j.Slf4j;
 import nsu.momongo12.config.Config;
 import nsu.momongo12.config.Socks5Constants;
+import nsu.momongo12.metrics.ProxyMetrics;
 import nsu.momongo12.model.ChannelPair;
 
 import java.io.IOException;
+import java.net.ConnectException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
-import java.nio.channels.UnresolvedAddressException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 
 /**
  * @author momongo12
@@ -21,144 +27,443 @@ import java.nio.channels.UnresolvedAddressException;
 public class Socks5Service implements AutoCloseable {
 
     private final Selector selector;
+    private final BufferPool bufferPool;
+    private final Executor reactorExecutor;
+    private final DnsResolver dnsResolver;
+    private final UdpRelay udpRelay;
+    private final TimerWheel timerWheel;
+    private final ProxyMetrics metrics;
+    private final UpstreamPool upstreamPool;
+    // null - аутентификация не требуется
+    private final CredentialStore credentialStore;
+    // null - скорость не ограничивается
+    private final TrafficShaper trafficShaper;
+    private final long connectTimeoutMillis;
+    private final long connectAttemptDelayMillis;
+    private final long idleTimeoutMillis;
 
-    public Socks5Service(Selector selector) {
+    // ответы клиентам пишутся синхронно в потоке реактора, буфер общий
+    private final ByteBuffer replyBuffer = ByteBuffer.allocate(Socks5Constants.RESPONSE_HEADER_SIZE);
+
+    public Socks5Service(Selector selector, BufferPool bufferPool, Executor reactorExecutor,
+                         DnsResolver dnsResolver, UdpRelay udpRelay, TimerWheel timerWheel, ProxyMetrics metrics,
+                         UpstreamPool upstreamPool, CredentialStore credentialStore,
+                         TrafficShaper trafficShaper) {
         this.selector = selector;
+        this.bufferPool = bufferPool;
+        this.reactorExecutor = reactorExecutor;
+        this.dnsResolver = dnsResolver;
+        this.udpRelay = udpRelay;
+        this.timerWheel = timerWheel;
+        this.metrics = metrics;
+        this.upstreamPool = upstreamPool;
+        this.credentialStore = credentialStore;
+        this.trafficShaper = trafficShaper;
+        this.connectTimeoutMillis = Config.getConnectTimeoutMillis();
+        this.connectAttemptDelayMillis = Config.getConnectAttemptDelayMillis();
+        this.idleTimeoutMillis = Config.getIdleTimeoutMillis();
     }
 
-    public void establishConnection(SocketChannel clientChannel, SelectionKey clientKey) throws IOException {
-        ByteBuffer buffer = ByteBuffer.allocate(Config.getBufferSize());
-        int bytesRead = clientChannel.read(buffer);
-        buffer.flip();
-
-        if (bytesRead < 4) {
-            sendErrorResponse(clientChannel, Socks5Constants.RESPONSE_GENERAL_FAILURE);
+    /**
+     * Дочитывает рукопожатие клиента и обрабатывает все сообщения, пришедшие целиком.
+     */
+    public void handleHandshake(SocketChannel clientChannel, SelectionKey clientKey, ChannelPair channelPair) throws IOException {
+        Socks5HandshakeParser handshake = channelPair.getHandshake();
+        int bytesRead = clientChannel.read(handshake.getBuffer());
+        if (bytesRead == -1) {
+            channelPair.close();
             return;
         }
 
-        if (buffer.get() != Socks5Constants.SOCKS_VERSION) {
-            sendErrorResponse(clientChannel, Socks5Constants.RESPONSE_GENERAL_FAILURE);
+        try {
+            Socks5HandshakeParser.Result result;
+            while ((result = handshake.parse()) != Socks5HandshakeParser.Result.NEED_MORE_DATA) {
+                if (result == Socks5HandshakeParser.Result.GREETING) {
+                    if (!handleGreeting(clientChannel, channelPair, handshake)) {
+                        return;
+                    }
+                } else if (result == Socks5HandshakeParser.Result.AUTHENTICATION) {
+                    if (!handleAuthentication(clientChannel, channelPair, handshake)) {
+                        return;
+                    }
+                } else {
+                    handleRequest(clientChannel, clientKey, channelPair, handshake);
+                    return;
+                }
+            }
+        } catch (Socks5Exception e) {
+            log.debug("Handshake failed: {}", e.getMessage());
+            sendErrorResponse(channelPair, e.getReplyCode());
+        }
+    }
+
+    /**
+     * Если настроено хранилище учётных записей, принимается только метод
+     * аутентификации по имени и паролю, иначе только метод без аутентификации.
+     */
+    private boolean handleGreeting(SocketChannel clientChannel, ChannelPair channelPair,
+                                   Socks5HandshakeParser handshake) throws IOException {
+        byte requiredMethod = credentialStore != null
+                ? Socks5Constants.AUTH_METHOD_USERNAME_PASSWORD
+                : Socks5Constants.AUTH_METHOD_NO_AUTH;
+        boolean methodSupported = handshake.isMethodOffered(requiredMethod);
+
+        replyBuffer.clear();
+        replyBuffer.put(Socks5Constants.SOCKS_VERSION);
+        if (methodSupported) {
+            replyBuffer.put(requiredMethod);
+        } else {
+            replyBuffer.put(Socks5Constants.AUTH_METHOD_NO_ACCEPTABLE_METHODS);
+        }
+        replyBuffer.flip();
+        clientChannel.write(replyBuffer);
+
+        if (!methodSupported) {
+            channelPair.close();
+        } else if (credentialStore != null) {
+            handshake.expectAuthentication();
+        }
+        return methodSupported;
+    }
+
+    private boolean handleAuthentication(SocketChannel clientChannel, ChannelPair channelPair,
+                                         Socks5HandshakeParser handshake) throws IOException {
+        boolean authenticated = credentialStore.verify(handshake.getUsername(), handshake.getPassword());
+        handshake.clearPassword();
+        metrics.recordAuthentication(authenticated);
+
+        replyBuffer.clear();
+        replyBuffer.put(Socks5Constants.AUTH_VERSION);
+        replyBuffer.put(authenticated ? Socks5Constants.AUTH_STATUS_SUCCESS : Socks5Constants.AUTH_STATUS_FAILURE);
+        replyBuffer.flip();
+        clientChannel.write(replyBuffer);
+
+        if (!authenticated) {
+            log.debug("Authentication failed for user {}", handshake.getUsername());
+            channelPair.close();
+            return false;
+        }
+        channelPair.setUser(handshake.getUsername());
+        return true;
+    }
+
+    private void handleRequest(SocketChannel clientChannel, SelectionKey clientKey, ChannelPair channelPair,
+                               Socks5HandshakeParser handshake) throws IOException {
+        if (handshake.getCommand() == Socks5Constants.COMMAND_UDP_ASSOCIATE) {
+            handleUdpAssociate(clientChannel, channelPair);
+            return;
+        }
+        if (handshake.getCommand() != Socks5Constants.COMMAND_CONNECT) {
+            sendErrorResponse(channelPair, Socks5Constants.RESPONSE_COMMAND_NOT_SUPPORTED);
             return;
         }
 
-        byte command = buffer.get();
-        if (command != Socks5Constants.COMMAND_CONNECT) {
-            sendErrorResponse(clientChannel, Socks5Constants.RESPONSE_COMMAND_NOT_SUPPORTED);
+        if (trafficShaper != null) {
+            InetSocketAddress clientAddress = (InetSocketAddress) clientChannel.getRemoteAddress();
+            channelPair.setRateLimits(trafficShaper.acquire(clientAddress.getAddress().getHostAddress(),
+                    channelPair.getUser(), handshake.getHost()));
+        }
+
+        SocketChannel pooled = upstreamPool.take(handshake);
+        if (pooled != null) {
+            channelPair.setConnectStartedAt(System.nanoTime());
+            forwardPendingBytes(channelPair);
+            attachUpstream(channelPair, pooled.keyFor(selector));
             return;
         }
 
-        buffer.get(); // Пропускаем зарезервированный байт
-
-        byte addressType = buffer.get();
-        String destinationAddress;
-        if (addressType == Socks5Constants.ADDRESS_TYPE_IPV4) {
-            byte[] addressBytes = new byte[Socks5Constants.IPV4_ADDRESS_LENGTH];
-            buffer.get(addressBytes);
-            destinationAddress = String.format("%d.%d.%d.%d",
-                    addressBytes[0] & 0xFF, addressBytes[1] & 0xFF,
-                    addressBytes[2] & 0xFF, addressBytes[3] & 0xFF);
-        } else if (addressType == Socks5Constants.ADDRESS_TYPE_DOMAIN) {
-            int domainLength = buffer.get();
-            byte[] domainBytes = new byte[domainLength];
-            buffer.get(domainBytes);
-            destinationAddress = new String(domainBytes);
+        if (handshake.getAddressType() == Socks5Constants.ADDRESS_TYPE_IPV4) {
+            InetAddress destinationAddress = InetAddress.getByAddress(handshake.getIpv4AddressBytes());
+            connect(clientKey, channelPair, new InetAddress[]{destinationAddress}, handshake.getPort());
         } else {
-            sendErrorResponse(clientChannel, Socks5Constants.RESPONSE_ADDRESS_TYPE_NOT_SUPPORTED);
+            resolveAndConnect(clientChannel, clientKey, channelPair, handshake.getDomain(), handshake.getPort());
+        }
+    }
+
+    /**
+     * Адрес и порт из запроса UDP ASSOCIATE не используются: датаграммы
+     * принимаются с IP управляющего соединения, порт клиента берётся из первой.
+     */
+    private void handleUdpAssociate(SocketChannel clientChannel, ChannelPair channelPair) throws IOException {
+        InetSocketAddress boundAddress;
+        try {
+            boundAddress = udpRelay.open(channelPair);
+        } catch (IOException e) {
+            log.warn("Failed to open UDP association: " + e.getMessage());
+            sendErrorResponse(channelPair, Socks5Constants.RESPONSE_GENERAL_FAILURE);
             return;
         }
+        channelPair.setHandshake(null);
 
-        int destinationPort = buffer.getShort() & 0xFFFF;
-        log.debug("Connecting to {}:{}", destinationAddress, destinationPort);
+        log.debug("Send UDP associate response");
+        writeReply(clientChannel, Socks5Constants.RESPONSE_SUCCESS, boundAddress);
+        metrics.recordUdpAssociationOpened(System.nanoTime() - channelPair.getAcceptedAt());
+    }
 
-        try {
-            SocketChannel serverChannel = SocketChannel.open();
-            serverChannel.configureBlocking(false);
-            serverChannel.connect(new InetSocketAddress(destinationAddress, destinationPort));
+    private void resolveAndConnect(SocketChannel clientChannel, SelectionKey clientKey, ChannelPair channelPair,
+                                   String destinationAddress, int destinationPort) throws IOException {
+        CompletableFuture<InetAddress[]> resolution = dnsResolver.resolve(destinationAddress);
+        if (resolution.isDone()) {
+            // имя уже в кэше, продолжаем без перехода между потоками
+            InetAddress[] addresses = resolution.isCompletedExceptionally() ? null : resolution.join();
+            onResolved(clientChannel, clientKey, channelPair, destinationAddress, destinationPort, addresses);
+            return;
+        }
 
-            ChannelPair channelPair = new ChannelPair(clientChannel, serverChannel);
-            clientKey.attach(channelPair);
-            serverChannel.register(selector, SelectionKey.OP_CONNECT, channelPair);
+        // пока имя разрешается, от клиента ничего не читаем
+        clientKey.interestOps(0);
+        resolution.whenComplete((addresses, error) -> reactorExecutor.execute(() -> {
+            try {
+                if (clientKey.isValid()) {
+                    clientKey.interestOps(SelectionKey.OP_READ);
+                    onResolved(clientChannel, clientKey, channelPair, destinationAddress, destinationPort,
+                            error == null ? addresses : null);
+                }
+            } catch (IOException e) {
+                log.warn("Failed to connect to {}: {}", destinationAddress, e.getMessage());
+                closeQuietly(channelPair);
+            }
+        }));
+    }
 
-            sendSuccessResponse(clientChannel);
-        } catch (UnresolvedAddressException e) {
+    private void onResolved(SocketChannel clientChannel, SelectionKey clientKey, ChannelPair channelPair,
+                            String destinationAddress, int destinationPort, InetAddress[] addresses) throws IOException {
+        if (addresses == null || addresses.length == 0) {
             log.warn("Failed to resolve address: " + destinationAddress);
-            sendErrorResponse(clientChannel, Socks5Constants.RESPONSE_HOST_UNREACHABLE);
+            sendErrorResponse(channelPair, Socks5Constants.RESPONSE_HOST_UNREACHABLE);
+            return;
         }
+        connect(clientKey, channelPair, addresses, destinationPort);
     }
 
-    public void handleAuthentication(SocketChannel clientChannel, SelectionKey key) throws IOException {
-        ByteBuffer buffer = ByteBuffer.allocate(2);
-        int bytesRead = clientChannel.read(buffer);
-        if (bytesRead < 2) {
-            return;
+    /**
+     * Пока идёт подключение, от клиента ничего не читаем: данные, пришедшие
+     * вместе с запросом, уже в очереди к серверу, остальное подождёт в сокете.
+     */
+    private void connect(SelectionKey clientKey, ChannelPair channelPair, InetAddress[] addresses,
+                         int destinationPort) throws IOException {
+        clientKey.interestOps(0);
+        channelPair.setConnectStartedAt(System.nanoTime());
+        ConnectRace race = new ConnectRace(channelPair, addresses, destinationPort);
+        channelPair.setConnectRace(race);
+        channelPair.setTimeout(timerWheel.schedule(connectTimeoutMillis, () -> onConnectTimeout(channelPair)));
+        forwardPendingBytes(channelPair);
+        startNextAttempt(race);
+    }
+
+    /**
+     * Запускает попытку к следующему адресу и откладывает ещё одну на
+     * {@code connectAttemptDelayMillis}. Если адресы кончились и живых попыток
+     * нет, подключение не удалось.
+     */
+    private void startNextAttempt(ConnectRace race) throws IOException {
+        while (race.hasNextAddress()) {
+            InetAddress address = race.nextAddress();
+            log.debug("Connecting to {}:{}", address.getHostAddress(), race.getPort());
+
+            SocketChannel attempt = SocketChannel.open();
+            try {
+                attempt.configureBlocking(false);
+                attempt.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                attempt.connect(new InetSocketAddress(address, race.getPort()));
+                SelectionKey attemptKey = attempt.register(selector, SelectionKey.OP_CONNECT, race);
+                race.addAttempt(attempt);
+                if (race.hasNextAddress()) {
+                    race.setNextAttemptTimeout(timerWheel.schedule(connectAttemptDelayMillis,
+                            () -> onNextAttemptDue(race)));
+                }
+                if (attempt.isConnected()) {
+                    attachUpstream(race, attemptKey);
+                }
+                return;
+            } catch (IOException e) {
+                attempt.close();
+                log.debug("Connect attempt to {} failed: {}", address.getHostAddress(), e.getMessage());
+                race.setLastError(e);
+            }
         }
-        buffer.flip();
 
-        byte version = buffer.get();
-        if (version != Socks5Constants.SOCKS_VERSION) {
-            sendErrorResponse(clientChannel, Socks5Constants.RESPONSE_GENERAL_FAILURE);
-            return;
+        if (race.getAttempts().isEmpty()) {
+            onConnectFailed(race.getChannelPair(), race.getLastError());
         }
+    }
 
-        byte numMethods = buffer.get();
-        ByteBuffer methodsBuffer = ByteBuffer.allocate(numMethods);
-        bytesRead = clientChannel.read(methodsBuffer);
-        if (bytesRead < numMethods) {
+    private void onNextAttemptDue(ConnectRace race) {
+        if (race.isFinished()) {
             return;
         }
-        methodsBuffer.flip();
+        try {
+            startNextAttempt(race);
+        } catch (IOException e) {
+            log.warn("Failed to start connect attempt: " + e.getMessage());
+            closeQuietly(race.getChannelPair());
+        }
+    }
 
-        boolean noAuthMethodSupported = false;
-        for (int i = 0; i < numMethods; i++) {
-            if (methodsBuffer.get() == Socks5Constants.AUTH_METHOD_NO_AUTH) {
-                noAuthMethodSupported = true;
-                break;
+    /**
+     * Готовность одной из попыток подключения. Возвращает туннель, если эта
+     * попытка выиграла гонку, иначе null.
+     */
+    public ChannelPair handleConnectAttempt(SelectionKey attemptKey) throws IOException {
+        ConnectRace race = (ConnectRace) attemptKey.attachment();
+        SocketChannel attempt = (SocketChannel) attemptKey.channel();
+        try {
+            if (!attempt.finishConnect()) {
+                return null;
             }
+        } catch (IOException e) {
+            attempt.close();
+            race.removeAttempt(attempt);
+            race.setLastError(e);
+            log.debug("Connect attempt failed: " + e.getMessage());
+            // следующий адрес пробуем сразу, не дожидаясь задержки
+            startNextAttempt(race);
+            return null;
         }
+        return attachUpstream(race, attemptKey);
+    }
 
-        ByteBuffer response = ByteBuffer.allocate(2);
-        response.put(Socks5Constants.SOCKS_VERSION);
-        if (noAuthMethodSupported) {
-            response.put(Socks5Constants.AUTH_METHOD_NO_AUTH);
-        } else {
-            response.put(Socks5Constants.AUTH_METHOD_NO_ACCEPTABLE_METHODS);
+    private ChannelPair attachUpstream(ConnectRace race, SelectionKey serverKey) throws IOException {
+        ChannelPair channelPair = race.getChannelPair();
+        race.win((SocketChannel) serverKey.channel());
+        channelPair.setConnectRace(null);
+        attachUpstream(channelPair, serverKey);
+        return channelPair;
+    }
+
+    private void attachUpstream(ChannelPair channelPair, SelectionKey serverKey) throws IOException {
+        channelPair.setServerChannel((SocketChannel) serverKey.channel());
+        serverKey.attach(channelPair);
+        int interestOps = SelectionKey.OP_READ;
+        // данные, пришедшие от клиента вместе с запросом, уже ждут в очереди
+        if (!channelPair.getClientToServerQueue().isEmpty()) {
+            interestOps |= SelectionKey.OP_WRITE;
         }
-        response.flip();
-        clientChannel.write(response);
+        serverKey.interestOps(interestOps);
+        channelPair.getClientChannel().keyFor(selector).interestOps(SelectionKey.OP_READ);
+        onConnected(channelPair);
+    }
 
-        if (!noAuthMethodSupported) {
-            clientChannel.close();
-        } else {
-            key.attach(new ChannelPair(clientChannel, null));
-            key.interestOps(SelectionKey.OP_READ);
+    /**
+     * Соединение с сервером установлено: только теперь клиент получает успешный ответ.
+     */
+    private void onConnected(ChannelPair channelPair) throws IOException {
+        sendSuccessResponse(channelPair.getClientChannel());
+        long now = System.nanoTime();
+        metrics.recordTunnelOpened(now - channelPair.getAcceptedAt(), now - channelPair.getConnectStartedAt());
+        channelPair.setLastActivity(timerWheel.getCurrentTime());
+        scheduleIdleTimeout(channelPair, idleTimeoutMillis);
+        log.debug("Tunnel to {} active", channelPair.getServerChannel().getRemoteAddress());
+    }
+
+    private void scheduleIdleTimeout(ChannelPair channelPair, long delayMillis) {
+        channelPair.setTimeout(timerWheel.schedule(delayMillis, () -> onIdleTimeout(channelPair)));
+    }
+
+    /**
+     * Активность туннеля только отмечается на горячем пути; таймаут сам
+     * переставляет себя на оставшееся время, пока простой не превысит предел.
+     */
+    private void onIdleTimeout(ChannelPair channelPair) {
+        long idle = timerWheel.getCurrentTime() - channelPair.getLastActivity();
+        if (idle < idleTimeoutMillis) {
+            scheduleIdleTimeout(channelPair, idleTimeoutMillis - idle);
+            return;
+        }
+        log.debug("Tunnel idle for {} ms, closing", idle);
+        closeQuietly(channelPair);
+    }
+
+    private void onConnectFailed(ChannelPair channelPair, IOException cause) throws IOException {
+        log.warn("Failed to connect to server: " + cause.getMessage());
+        byte replyCode = cause instanceof ConnectException
+                ? Socks5Constants.RESPONSE_CONNECTION_REFUSED
+                : Socks5Constants.RESPONSE_HOST_UNREACHABLE;
+        try {
+            writeReply(channelPair.getClientChannel(), replyCode);
+        } finally {
+            channelPair.close();
+        }
+    }
+
+    private void onConnectTimeout(ChannelPair channelPair) {
+        log.debug("Connect timed out");
+        try {
+            writeReply(channelPair.getClientChannel(), Socks5Constants.RESPONSE_TTL_EXPIRED);
+        } catch (IOException e) {
+            log.debug("Failed to send timeout response: " + e.getMessage());
+        }
+        closeQuietly(channelPair);
+    }
+
+    /**
+     * Данные, которые клиент отправил сразу за запросом, не дожидаясь ответа,
+     * уходят в очередь к серверу вперёд всего, что будет прочитано дальше.
+     */
+    private void forwardPendingBytes(ChannelPair channelPair) {
+        Socks5HandshakeParser handshake = channelPair.getHandshake();
+        while (handshake.getPendingBytes() > 0) {
+            ByteBuffer buffer = bufferPool.acquire();
+            handshake.transferPending(buffer);
+            buffer.flip();
+            channelPair.getClientToServerQueue().add(buffer);
         }
+        channelPair.setHandshake(null);
     }
 
-    private void sendErrorResponse(SocketChannel clientChannel, byte errorCode) throws IOException {
+    /**
+     * Закрывается вся пара, а не только клиентский канал: так сразу снимается
+     * таймер рукопожатия и возвращаются ведра ограничителя скорости.
+     */
+    private void sendErrorResponse(ChannelPair channelPair, byte errorCode) throws IOException {
         log.debug("Send error response: {}", errorCode);
-        ByteBuffer buffer = ByteBuffer.allocate(Socks5Constants.RESPONSE_HEADER_SIZE);
-        buffer.put(Socks5Constants.SOCKS_VERSION); // SOCKS5 версия
-        buffer.put(errorCode);    // Код ошибки
-        buffer.put((byte) 0x00);  // Зарезервировано
-        buffer.put(Socks5Constants.ADDRESS_TYPE_IPV4);  // Тип адреса (IPv4)
-        buffer.putInt(0);         // Адрес (0.0.0.0, не имеет значения)
-        buffer.putShort((short) 0); // Порт (0, не имеет значения)
-        buffer.flip();
-        clientChannel.write(buffer);
-        clientChannel.close();
+        try {
+            writeReply(channelPair.getClientChannel(), errorCode);
+        } finally {
+            channelPair.close();
+        }
     }
 
     private void sendSuccessResponse(SocketChannel clientChannel) throws IOException {
         log.debug("Send success response");
-        ByteBuffer buffer = ByteBuffer.allocate(Socks5Constants.RESPONSE_HEADER_SIZE);
-        buffer.put(Socks5Constants.SOCKS_VERSION); // SOCKS5 версия
-        buffer.put(Socks5Constants.RESPONSE_SUCCESS); // Успешное подключение
-        buffer.put((byte) 0x00); // Зарезервировано
-        buffer.put(Socks5Constants.ADDRESS_TYPE_IPV4); // Тип адреса (IPv4)
-        buffer.putInt(0);        // Адрес (0.0.0.0, не имеет значения)
-        buffer.putShort((short) 0); // Порт (0, не имеет значения)
-        buffer.flip();
-        clientChannel.write(buffer);
+        writeReply(clientChannel, Socks5Constants.RESPONSE_SUCCESS);
+    }
+
+    private void writeReply(SocketChannel clientChannel, byte replyCode) throws IOException {
+        writeReply(clientChannel, replyCode, null);
+    }
+
+    private void writeReply(SocketChannel clientChannel, byte replyCode, InetSocketAddress boundAddress) throws IOException {
+        replyBuffer.clear();
+        encodeReply(replyBuffer, replyCode, boundAddress);
+        replyBuffer.flip();
+        clientChannel.write(replyBuffer);
+        metrics.recordReply(replyCode);
+    }
+
+    /**
+     * Ответ на запрос клиента, общий для реакторов и режима виртуальных потоков.
+     */
+    static void encodeReply(ByteBuffer target, byte replyCode, InetSocketAddress boundAddress) {
+        target.put(Socks5Constants.SOCKS_VERSION);      // SOCKS5 версия
+        target.put(replyCode);                          // Код ответа
+        target.put((byte) 0x00);                        // Зарезервировано
+        target.put(Socks5Constants.ADDRESS_TYPE_IPV4);  // Тип адреса (IPv4)
+        if (boundAddress != null && boundAddress.getAddress() instanceof Inet4Address) {
+            target.put(boundAddress.getAddress().getAddress());
+            target.putShort((short) boundAddress.getPort());
+        } else {
+            target.putInt(0);                           // Адрес (0.0.0.0, не имеет значения)
+            target.putShort((short) 0);                 // Порт (0, не имеет значения)
+        }
+    }
+
+    private void closeQuietly(ChannelPair channelPair) {
+        try {
+            channelPair.close();
+        } catch (IOException e) {
+            log.warn("Failed to close channel pair: " + e.getMessage());
+        }
     }
 
     @Override
@@ -0,0 +1,168 @@
+package nsu.momongo12.logic;
+
+/**
+ * Хешированное колесо таймеров реактора. Таймаут попадает в ячейку по номеру
+ * тика своего дедлайна, постановка и отмена - O(1) независимо от числа таймаутов.
+ * Точность - один тик. Используется только из потока реактора.
+ *
+ * @author momongo12
+ * @version 1.0
+ */
+public class TimerWheel {
+
+    private final long tickMillis;
+    private final Timeout[] buckets;
+    private final int mask;
+    private final long startTime;
+
+    private long currentTick;
+    private long currentTime;
+    private int pending;
+
+    /**
+     * @param wheelSize число ячеек, округляется вверх до степени двойки
+     */
+    public TimerWheel(long tickMillis, int wheelSize, long now) {
+        int size = Integer.highestOneBit(Math.max(wheelSize, 2) - 1) << 1;
+        this.tickMillis = tickMillis;
+        this.buckets = new Timeout[size];
+        this.mask = size - 1;
+        this.startTime = now;
+        this.currentTime = now;
+    }
+
+    /**
+     * Время последнего продвижения колеса. Дешёвая замена System.currentTimeMillis()
+     * для отметок активности на горячем пути.
+     */
+    public long getCurrentTime() {
+        return currentTime;
+    }
+
+    public Timeout schedule(long delayMillis, Runnable task) {
+        long deadline = currentTime + Math.max(delayMillis, 0);
+        long deadlineTick = (deadline - startTime + tickMillis - 1) / tickMillis;
+        Timeout timeout = new Timeout(this, Math.max(deadlineTick, currentTick + 1), task);
+        link(timeout);
+        return timeout;
+    }
+
+    /**
+     * Сколько можно ждать в select() до следующего тика; 0 - таймеров нет, ждать без ограничения.
+     */
+    public long getSelectTimeout(long now) {
+        if (pending == 0) {
+            return 0;
+        }
+        long nextTickTime = startTime + (currentTick + 1) * tickMillis;
+        return Math.max(nextTickTime - now, 1);
+    }
+
+    /**
+     * Продвигает колесо до момента now и выполняет истёкшие таймауты.
+     */
+    public void advance(long now) {
+        currentTime = now;
+        long targetTick = (now - startTime) / tickMillis;
+        if (pending == 0) {
+            currentTick = Math.max(currentTick, targetTick);
+            return;
+        }
+
+        if (targetTick - currentTick >= buckets.length) {
+            // колесо стояло дольше полного оборота: каждую ячейку достаточно обойти один раз
+            currentTick = targetTick;
+            for (int i = 0; i < buckets.length; i++) {
+                expireBucket(i, targetTick);
+            }
+            return;
+        }
+
+        while (currentTick < targetTick) {
+            currentTick++;
+            expireBucket((int) (currentTick & mask), currentTick);
+        }
+    }
+
+    public int getPendingCount() {
+        return pending;
+    }
+
+    private void expireBucket(int index, long tick) {
+        // сначала отцепляем истёкшие, потом выполняем: задача может отменить
+        // или поставить другие таймауты, не ломая обход ячейки
+        Timeout expired = null;
+        Timeout timeout = buckets[index];
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            if (timeout.deadlineTick <= tick) {
+                unlink(timeout);
+                timeout.expiring = true;
+                timeout.next = expired;
+                expired = timeout;
+            }
+            timeout = next;
+        }
+
+        while (expired != null) {
+            Timeout next = expired.next;
+            expired.next = null;
+            if (!expired.cancelled) {
+                expired.task.run();
+            }
+            expired = next;
+        }
+    }
+
+    private void link(Timeout timeout) {
+        int index = (int) (timeout.deadlineTick & mask);
+        timeout.next = buckets[index];
+        if (timeout.next != null) {
+            timeout.next.prev = timeout;
+        }
+        buckets[index] = timeout;
+        pending++;
+    }
+
+    private void unlink(Timeout timeout) {
+        int index = (int) (timeout.deadlineTick & mask);
+        if (timeout.prev != null) {
+            timeout.prev.next = timeout.next;
+        } else {
+            buckets[index] = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.prev = timeout.prev;
+        }
+        timeout.prev = null;
+        timeout.next = null;
+        pending--;
+    }
+
+    public static final class Timeout {
+        private final TimerWheel wheel;
+        private final long deadlineTick;
+        private final Runnable task;
+
+        private Timeout prev;
+        private Timeout next;
+        private boolean expiring;
+        private boolean cancelled;
+
+        private Timeout(TimerWheel wheel, long deadlineTick, Runnable task) {
+            this.wheel = wheel;
+            this.deadlineTick = deadlineTick;
+            this.task = task;
+        }
+
+        public void cancel() {
+            if (cancelled) {
+                return;
+            }
+            cancelled = true;
+            if (!expiring) {
+                wheel.unlink(this);
+            }
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package nsu.momongo12.logic;
+
+import nsu.momongo12.config.Config;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Ограничение полосы туннелей по IP клиента, пользователю и адресу назначения.
+ * <p>
+ * Каждое ограничение - корзина токенов в форме GCRA: вместо счётчика токенов
+ * хранится теоретическое время прихода следующего байта, и списание - это
+ * один CAS без блокировок и выделения памяти. Корзины общие для всех
+ * реакторов и выбираются один раз при запросе CONNECT; на горячем пути
+ * реактор только списывает прочитанные байты и, если корзина ушла в долг
+ * глубже допустимого всплеска, снимает интерес к чтению до момента, когда
+ * долг погасится.
+ *
+ * @author momongo12
+ * @version 1.0
+ */
+public class TrafficShaper {
+
+    // как часто при выдаче корзин просматривать таблицу в поисках ненужных
+    private static final int SWEEP_INTERVAL = 1024;
+
+    private final Limit clientLimit;
+    private final Limit userLimit;
+    private final Limit destinationLimit;
+
+    /**
+     * Пределы задаются в байтах в секунду, 0 - не ограничивать.
+     *
+     * @param burstBytes сколько байт можно пропустить разом сверх средней скорости
+     */
+    public TrafficShaper(long clientBytesPerSecond, long userBytesPerSecond, long destinationBytesPerSecond,
+                         long burstBytes) {
+        clientLimit = clientBytesPerSecond > 0 ? new Limit(clientBytesPerSecond, burstBytes) : null;
+        userLimit = userBytesPerSecond > 0 ? new Limit(userBytesPerSecond, burstBytes) : null;
+        destinationLimit = destinationBytesPerSecond > 0 ? new Limit(destinationBytesPerSecond, burstBytes) : null;
+    }
+
+    /**
+     * Ограничитель из конфигурации или null, если ни один предел не задан.
+     */
+    public static TrafficShaper fromConfig() {
+        long client = Config.getShapingClientBytesPerSecond();
+        long user = Config.getShapingUserBytesPerSecond();
+        long destination = Config.getShapingDestinationBytesPerSecond();
+        if (client <= 0 && user <= 0 && destination <= 0) {
+            return null;
+        }
+        return new TrafficShaper(client, user, destination, Config.getShapingBurstBytes());
+    }
+
+    /**
+     * Корзины туннеля; каждую нужно вернуть через {@link #release(Bucket[])}
+     * при его закрытии.
+     *
+     * @param user null, если клиент не аутентифицирован
+     * @return null, если туннель ничем не ограничен
+     */
+    public Bucket[] acquire(String clientAddress, String user, String destination) {
+        Bucket client = clientLimit != null ? clientLimit.acquire(clientAddress) : null;
+        Bucket perUser = userLimit != null && user != null ? userLimit.acquire(user) : null;
+        Bucket perDestination = destinationLimit != null ? destinationLimit.acquire(destination) : null;
+
+        int count = (client != null ? 1 : 0) + (perUser != null ? 1 : 0) + (perDestination != null ? 1 : 0);
+        if (count == 0) {
+            return null;
+        }
+        Bucket[] buckets = new Bucket[count];
+        int i = 0;
+        if (client != null) {
+            buckets[i++] = client;
+        }
+        if (perUser != null) {
+            buckets[i++] = perUser;
+        }
+        if (perDestination != null) {
+            buckets[i] = perDestination;
+        }
+        return buckets;
+    }
+
+    public static void release(Bucket[] buckets) {
+        for (Bucket bucket: buckets) {
+            bucket.limit.release(bucket);
+        }
+    }
+
+    /**
+     * Списывает байты со всех корзин туннеля.
+     *
+     * @return через сколько наносекунд можно читать дальше, 0 - сразу
+     */
+    public static long charge(Bucket[] buckets, int bytes, long nowNanos) {
+        long delay = 0;
+        for (Bucket bucket: buckets) {
+            delay = Math.max(delay, bucket.charge(bytes, nowNanos));
+        }
+        return delay;
+    }
+
+    /**
+     * Один вид ограничения: скорость, всплеск и корзины по ключам.
+     */
+    private static final class Limit {
+
+        private final long bytesPerSecond;
+        private final long burstNanos;
+        private final Map<String, Bucket> buckets = new ConcurrentHashMap<>();
+        private final AtomicInteger acquisitions = new AtomicInteger();
+
+        private Limit(long bytesPerSecond, long burstBytes) {
+            this.bytesPerSecond = bytesPerSecond;
+            this.burstNanos = burstBytes * 1_000_000_000L / bytesPerSecond;
+        }
+
+        private Bucket acquire(String key) {
+            if (acquisitions.incrementAndGet() % SWEEP_INTERVAL == 0) {
+                sweep(System.nanoTime());
+            }
+            return buckets.compute(key, (k, bucket) -> {
+                if (bucket == null) {
+                    bucket = new Bucket(this, k, System.nanoTime());
+                }
+                bucket.users++;
+                return bucket;
+            });
+        }
+
+        /**
+         * Корзина без туннелей удаляется, только когда полностью восполнилась,
+         * иначе переподключение обнуляло бы долг.
+         */
+        private void release(Bucket bucket) {
+            long now = System.nanoTime();
+            buckets.computeIfPresent(bucket.key, (k, current) -> {
+                if (current == bucket && --current.users == 0 && current.isFull(now)) {
+                    return null;
+                }
+                return current;
+            });
+        }
+
+        private void sweep(long now) {
+            for (String key: buckets.keySet()) {
+                buckets.computeIfPresent(key, (k, bucket) -> bucket.users == 0 && bucket.isFull(now) ? null : bucket);
+            }
+        }
+    }
+
+    public static final class Bucket {
+
+        private final Limit limit;
+        private final String key;
+        // теоретическое время прихода следующего байта, System.nanoTime()
+        private final AtomicLong theoreticalArrival;
+        // изменяется только внутри compute таблицы корзин
+        private int users;
+
+        private Bucket(Limit limit, String key, long nowNanos) {
+            this.limit = limit;
+            this.key = key;
+            this.theoreticalArrival = new AtomicLong(nowNanos);
+        }
+
+        private long charge(int bytes, long nowNanos) {
+            long cost = bytes * 1_000_000_000L / limit.bytesPerSecond;
+            long arrival;
+            long next;
+            do {
+                arrival = theoreticalArrival.get();
+                next = Math.max(arrival, nowNanos) + cost;
+            } while (!theoreticalArrival.compareAndSet(arrival, next));
+            return Math.max(0, next - nowNanos - limit.burstNanos);
+        }
+
+        private boolean isFull(long nowNanos) {
+            return theoreticalArrival.get() - nowNanos <= 0;
+        }
+    }
+}
@@ -0,0 +1,405 @@
+package nsu.momongo12.logic;
+
+import lombok.extern.slf4j.Slf4j;
+import nsu.momongo12.config.Socks5Constants;
+import nsu.momongo12.metrics.ProxyMetrics;
+import nsu.momongo12.model.ChannelPair;
+import nsu.momongo12.model.UdpAssociation;
+import nsu.momongo12.model.UdpNatTable;
+
+import java.io.IOException;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * Пересылка датаграмм UDP ASSOCIATE в потоке реактора. Все ассоциации
+ * реактора принимают датаграммы в один общий direct-буфер, за одно событие
+ * готовности вычитывается до {@code batchSize} датаграмм.
+ *
+ * @author momongo12
+ * @version 1.0
+ */
+@Slf4j
+public class UdpRelay {
+
+    private static final int MAX_DATAGRAM_SIZE = 65535;
+    // RSV(2) FRAG(1) ATYP(1) IPv4(4) PORT(2)
+    private static final int IPV4_HEADER_SIZE = 10;
+    private static final int MAX_DOMAIN_LENGTH = 255;
+
+    private final Selector selector;
+    private final Executor reactorExecutor;
+    private final DnsResolver dnsResolver;
+    private final TimerWheel timerWheel;
+    private final ProxyMetrics metrics;
+    private final int natMaxEntries;
+    private final long idleTimeoutMillis;
+    private final int batchSize;
+    private final long domainTtlMillis;
+    private final int maxDomains;
+
+    private final ByteBuffer datagramBuffer = ByteBuffer.allocateDirect(MAX_DATAGRAM_SIZE + IPV4_HEADER_SIZE);
+    // имя из заголовка DOMAIN-датаграммы декодируется сюда и ищется в кэше без выделения памяти
+    private final DomainName domainName = new DomainName(new byte[MAX_DOMAIN_LENGTH], 0);
+    private final Map<DomainName, DomainEntry> domains = new HashMap<>();
+
+    public UdpRelay(Selector selector, Executor reactorExecutor, DnsResolver dnsResolver, TimerWheel timerWheel,
+                    ProxyMetrics metrics, int natMaxEntries, long idleTimeoutMillis, int batchSize,
+                    long domainTtlMillis, int maxDomains) {
+        this.selector = selector;
+        this.reactorExecutor = reactorExecutor;
+        this.dnsResolver = dnsResolver;
+        this.timerWheel = timerWheel;
+        this.metrics = metrics;
+        this.natMaxEntries = natMaxEntries;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.batchSize = batchSize;
+        this.domainTtlMillis = domainTtlMillis;
+        this.maxDomains = maxDomains;
+    }
+
+    /**
+     * Открывает ассоциацию для управляющего соединения и возвращает адрес,
+     * на который клиент должен слать датаграммы.
+     */
+    public InetSocketAddress open(ChannelPair controlPair) throws IOException {
+        SocketChannel controlChannel = controlPair.getClientChannel();
+        InetAddress localIp = ((InetSocketAddress) controlChannel.getLocalAddress()).getAddress();
+        InetAddress clientIp = ((InetSocketAddress) controlChannel.getRemoteAddress()).getAddress();
+
+        DatagramChannel clientSideChannel = DatagramChannel.open();
+        DatagramChannel remoteSideChannel = DatagramChannel.open();
+        try {
+            clientSideChannel.bind(new InetSocketAddress(localIp, 0));
+            clientSideChannel.configureBlocking(false);
+            remoteSideChannel.bind(new InetSocketAddress(0));
+            remoteSideChannel.configureBlocking(false);
+        } catch (IOException e) {
+            clientSideChannel.close();
+            remoteSideChannel.close();
+            throw e;
+        }
+
+        UdpAssociation association = new UdpAssociation(controlPair, clientSideChannel, remoteSideChannel,
+                new UdpNatTable(natMaxEntries), clientIp);
+        association.setLastActivity(timerWheel.getCurrentTime());
+        clientSideChannel.register(selector, SelectionKey.OP_READ, association);
+        remoteSideChannel.register(selector, SelectionKey.OP_READ, association);
+        controlPair.setUdpAssociation(association);
+        // таймаут рукопожатия сменяется таймаутом простоя ассоциации
+        scheduleIdleTimeout(association, idleTimeoutMillis);
+
+        InetSocketAddress boundAddress = (InetSocketAddress) clientSideChannel.getLocalAddress();
+        log.debug("UDP association for {} bound to {}", clientIp.getHostAddress(), boundAddress);
+        return boundAddress;
+    }
+
+    public void handleRead(SelectionKey key) throws IOException {
+        UdpAssociation association = (UdpAssociation) key.attachment();
+        if (key.channel() == association.getClientSideChannel()) {
+            relayFromClient(association);
+        } else {
+            relayFromRemote(association);
+        }
+    }
+
+    private void relayFromClient(UdpAssociation association) throws IOException {
+        DatagramChannel channel = association.getClientSideChannel();
+        long now = timerWheel.getCurrentTime();
+
+        for (int i = 0; i < batchSize; i++) {
+            datagramBuffer.clear();
+            SocketAddress sender = channel.receive(datagramBuffer);
+            if (sender == null) {
+                return;
+            }
+            if (!acceptClient(association, (InetSocketAddress) sender)) {
+                continue;
+            }
+            datagramBuffer.flip();
+            association.setLastActivity(now);
+            metrics.recordUdpFromClient();
+            forwardToRemote(association, now);
+        }
+    }
+
+    private boolean acceptClient(UdpAssociation association, InetSocketAddress sender) {
+        if (!sender.getAddress().equals(association.getClientIp())) {
+            return false;
+        }
+        if (association.getClientAddress() == null) {
+            association.setClientAddress(sender);
+            return true;
+        }
+        return association.getClientAddress().equals(sender);
+    }
+
+    private void forwardToRemote(UdpAssociation association, long now) throws IOException {
+        ByteBuffer datagram = datagramBuffer;
+        if (datagram.remaining() < 4 || datagram.get(2) != 0) {
+            // фрагментация не поддерживается, такие датаграммы отбрасываются
+            return;
+        }
+
+        byte addressType = datagram.get(3);
+        if (addressType == Socks5Constants.ADDRESS_TYPE_IPV4) {
+            if (datagram.remaining() < IPV4_HEADER_SIZE) {
+                return;
+            }
+            int address = datagram.getInt(4);
+            int port = datagram.getShort(8) & 0xFFFF;
+            UdpNatTable.Entry entry = association.getNatTable().get(UdpNatTable.key(address, port));
+            if (entry == null) {
+                InetAddress remoteIp = InetAddress.getByAddress(new byte[] {
+                        (byte) (address >>> 24), (byte) (address >>> 16), (byte) (address >>> 8), (byte) address
+                });
+                entry = association.getNatTable().put(UdpNatTable.key(address, port),
+                        new InetSocketAddress(remoteIp, port), now);
+                if (entry == null) {
+                    return;
+                }
+            }
+            entry.touch(now);
+            datagram.position(IPV4_HEADER_SIZE);
+            association.getRemoteSideChannel().send(datagram, entry.getRemoteAddress());
+        } else if (addressType == Socks5Constants.ADDRESS_TYPE_DOMAIN) {
+            forwardToDomain(association, datagram, now);
+        }
+    }
+
+    private void forwardToDomain(UdpAssociation association, ByteBuffer datagram, long now) throws IOException {
+        if (datagram.remaining() < 5) {
+            return;
+        }
+        int domainLength = datagram.get(4) & 0xFF;
+        int headerSize = 5 + domainLength + 2;
+        if (datagram.remaining() < headerSize) {
+            return;
+        }
+        domainName.set(datagram, 5, domainLength);
+        int port = datagram.getShort(5 + domainLength) & 0xFFFF;
+        datagram.position(headerSize);
+
+        DomainEntry domainEntry = lookupDomain(now);
+        String domain = domainEntry.domain;
+        CompletableFuture<InetAddress[]> resolution = domainEntry.resolution;
+        if (resolution.isDone()) {
+            if (resolution.isCompletedExceptionally()) {
+                metrics.recordUdpUnresolved();
+            } else {
+                sendToResolved(association, domain, resolution.join(), port, datagram, now);
+            }
+            return;
+        }
+
+        // имя ещё не в кэше: копируем полезную нагрузку до ответа резолвера
+        ByteBuffer payload = ByteBuffer.allocate(datagram.remaining());
+        payload.put(datagram).flip();
+        resolution.whenComplete((addresses, error) -> {
+            if (error != null) {
+                metrics.recordUdpUnresolved();
+                return;
+            }
+            reactorExecutor.execute(() -> {
+                try {
+                    if (association.getRemoteSideChannel().isOpen()) {
+                        sendToResolved(association, domain, addresses, port, payload, timerWheel.getCurrentTime());
+                    }
+                } catch (IOException e) {
+                    log.debug("Failed to relay UDP datagram to {}: {}", domain, e.getMessage());
+                }
+            });
+        });
+    }
+
+    /**
+     * Запись кэша для имени в {@link #domainName}. Сама резолюция и её TTL -
+     * в {@link DnsResolver}; здесь имя не декодируется в строку заново на
+     * каждую датаграмму, а запись обновляется раз в TTL или после ошибки.
+     */
+    private DomainEntry lookupDomain(long now) {
+        DomainEntry entry = domains.get(domainName);
+        if (entry == null) {
+            if (domains.size() >= maxDomains) {
+                domains.values().removeIf(existing -> existing.expiresAt <= now);
+                if (domains.size() >= maxDomains) {
+                    domains.clear();
+                }
+            }
+            entry = new DomainEntry(domainName.toString());
+            domains.put(domainName.copy(), entry);
+        }
+        if (entry.resolution == null || entry.expiresAt <= now || entry.resolution.isCompletedExceptionally()) {
+            entry.resolution = dnsResolver.resolve(entry.domain);
+            entry.expiresAt = now + domainTtlMillis;
+        }
+        return entry;
+    }
+
+    /**
+     * Таблица трансляции и ответы клиенту - только IPv4, поэтому имя без
+     * IPv4-адреса не обслуживается. Ответить клиенту ошибкой RFC 1928 для UDP
+     * не позволяет: такая датаграмма отбрасывается и учитывается в метриках.
+     */
+    private void sendToResolved(UdpAssociation association, String domain, InetAddress[] addresses, int port,
+                                ByteBuffer payload, long now) throws IOException {
+        for (InetAddress address: addresses) {
+            if (address instanceof Inet4Address) {
+                long key = UdpNatTable.key(address.hashCode(), port);
+                UdpNatTable.Entry entry = association.getNatTable().get(key);
+                if (entry == null) {
+                    entry = association.getNatTable().put(key, new InetSocketAddress(address, port), now);
+                    if (entry == null) {
+                        return;
+                    }
+                }
+                entry.touch(now);
+                association.getRemoteSideChannel().send(payload, entry.getRemoteAddress());
+                return;
+            }
+        }
+        metrics.recordUdpNoIpv4Address();
+        log.debug("Dropped UDP datagram to {}: no IPv4 address", domain);
+    }
+
+    private void relayFromRemote(UdpAssociation association) throws IOException {
+        DatagramChannel channel = association.getRemoteSideChannel();
+        long now = timerWheel.getCurrentTime();
+
+        for (int i = 0; i < batchSize; i++) {
+            // место под заголовок оставляем в начале буфера, чтобы не копировать данные
+            datagramBuffer.clear();
+            datagramBuffer.position(IPV4_HEADER_SIZE);
+            SocketAddress sender = channel.receive(datagramBuffer);
+            if (sender == null) {
+                return;
+            }
+
+            InetSocketAddress remote = (InetSocketAddress) sender;
+            if (!(remote.getAddress() instanceof Inet4Address) || association.getClientAddress() == null) {
+                continue;
+            }
+            // Inet4Address.hashCode() - это сам адрес, ключ считается без выделения памяти
+            int address = remote.getAddress().hashCode();
+            UdpNatTable.Entry entry = association.getNatTable().get(UdpNatTable.key(address, remote.getPort()));
+            if (entry == null) {
+                // отвечать клиенту могут только узлы, которым он сам писал
+                continue;
+            }
+            entry.touch(now);
+            association.setLastActivity(now);
+
+            datagramBuffer.flip();
+            datagramBuffer.putShort(0, (short) 0);
+            datagramBuffer.put(2, (byte) 0);
+            datagramBuffer.put(3, Socks5Constants.ADDRESS_TYPE_IPV4);
+            datagramBuffer.putInt(4, address);
+            datagramBuffer.putShort(8, (short) remote.getPort());
+            association.getClientSideChannel().send(datagramBuffer, association.getClientAddress());
+            metrics.recordUdpFromRemote();
+        }
+    }
+
+    private void scheduleIdleTimeout(UdpAssociation association, long delayMillis) {
+        association.getControlPair().setTimeout(timerWheel.schedule(delayMillis, () -> onIdleTimeout(association)));
+    }
+
+    /**
+     * Закрывает ассоциацию без трафика дольше таймаута вместе с управляющим
+     * соединением; у живой чистит устаревшие записи трансляции и ставит
+     * таймаут заново на оставшееся время.
+     */
+    private void onIdleTimeout(UdpAssociation association) {
+        long now = timerWheel.getCurrentTime();
+        long idle = now - association.getLastActivity();
+        if (idle >= idleTimeoutMillis) {
+            log.debug("UDP association for {} expired", association.getClientIp().getHostAddress());
+            closeQuietly(association.getControlPair());
+            return;
+        }
+        association.getNatTable().expire(now - idleTimeoutMillis);
+        scheduleIdleTimeout(association, idleTimeoutMillis - idle);
+    }
+
+    /**
+     * Байты доменного имени как ключ. Ключ для поиска переиспользуется, в
+     * кэш кладётся его копия.
+     */
+    private static final class DomainName {
+
+        private final byte[] bytes;
+        private int length;
+        private int hash;
+
+        private DomainName(byte[] bytes, int length) {
+            this.bytes = bytes;
+            this.length = length;
+            this.hash = hash(bytes, length);
+        }
+
+        private void set(ByteBuffer source, int offset, int length) {
+            source.get(offset, bytes, 0, length);
+            this.length = length;
+            this.hash = hash(bytes, length);
+        }
+
+        private DomainName copy() {
+            return new DomainName(Arrays.copyOf(bytes, length), length);
+        }
+
+        private static int hash(byte[] bytes, int length) {
+            int result = 1;
+            for (int i = 0; i < length; i++) {
+                result = 31 * result + bytes[i];
+            }
+            return result;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof DomainName name)) {
+                return false;
+            }
+            return Arrays.equals(bytes, 0, length, name.bytes, 0, name.length);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public String toString() {
+            return new String(bytes, 0, length, StandardCharsets.US_ASCII);
+        }
+    }
+
+    private static final class DomainEntry {
+
+        private final String domain;
+        private CompletableFuture<InetAddress[]> resolution;
+        private long expiresAt;
+
+        private DomainEntry(String domain) {
+            this.domain = domain;
+        }
+    }
+
+    private void closeQuietly(ChannelPair channelPair) {
+        try {
+            channelPair.close();
+        } catch (IOException e) {
+            log.warn("Failed to close UDP control connection: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,250 @@
+package nsu.momongo12.logic;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * Тёплый пул заранее установленных соединений к часто используемым серверам
+ * из конфигурации. У каждого реактора свой пул, соединения зарегистрированы в
+ * его селекторе. Взятое соединение сразу замещается новым.
+ * <p>
+ * Соединение, пролежавшее в пуле дольше {@code upstream.pool.max.idle.seconds},
+ * закрывается без замены: пул адреса, к которому никто не обращается, остывает
+ * и снова наполняется при следующем запросе к нему. Неудавшееся подключение
+ * занимает своё место в пуле до повторной попытки через
+ * {@value #RETRY_DELAY_MILLIS} мс.
+ * <p>
+ * Подходит только для протоколов, где первым говорит клиент (HTTP, TLS): если
+ * сервер что-то прислал или закрыл соединение, пока оно лежит в пуле, оно
+ * выбрасывается.
+ *
+ * @author momongo12
+ * @version 1.0
+ */
+@Slf4j
+public class UpstreamPool {
+
+    private static final long RETRY_DELAY_MILLIS = 5000;
+
+    private final Selector selector;
+    private final Executor reactorExecutor;
+    private final DnsResolver dnsResolver;
+    private final TimerWheel timerWheel;
+    private final int size;
+    private final long maxIdleMillis;
+    private final Map<String, Destination> destinations = new HashMap<>();
+    private boolean closed;
+
+    /**
+     * @param configured адреса вида {@code host:port}
+     */
+    public UpstreamPool(Selector selector, Executor reactorExecutor, DnsResolver dnsResolver, TimerWheel timerWheel,
+                        List<String> configured, int size, long maxIdleMillis) {
+        this.selector = selector;
+        this.reactorExecutor = reactorExecutor;
+        this.dnsResolver = dnsResolver;
+        this.timerWheel = timerWheel;
+        this.size = size;
+        this.maxIdleMillis = maxIdleMillis;
+
+        for (String destination: configured) {
+            int separator = destination.lastIndexOf(':');
+            if (separator <= 0) {
+                throw new IllegalArgumentException("Expected host:port in upstream pool destination: " + destination);
+            }
+            String host = destination.substring(0, separator);
+            int port = Integer.parseInt(destination.substring(separator + 1));
+            destinations.put(key(host, port), new Destination(host, port));
+        }
+    }
+
+    /**
+     * Заполняет пул. Вызывать в потоке реактора.
+     */
+    public void start() {
+        for (Destination destination: destinations.values()) {
+            fill(destination);
+        }
+    }
+
+    /**
+     * Готовое соединение к адресу из запроса или null. Ключ соединения остаётся
+     * зарегистрированным, вызывающий перевешивает на него свой attachment.
+     */
+    public SocketChannel take(Socks5HandshakeParser request) {
+        if (destinations.isEmpty() || closed) {
+            return null;
+        }
+        String host = request.getHost();
+        Destination destination = destinations.get(key(host, request.getPort()));
+        if (destination == null) {
+            return null;
+        }
+        Entry entry = destination.ready.pollFirst();
+        // взятое замещается, а остывший пул наполняется заново
+        fill(destination);
+        if (entry == null) {
+            return null;
+        }
+        entry.expiry.cancel();
+        log.debug("Upstream {} taken from pool", key(host, request.getPort()));
+        return entry.channel;
+    }
+
+    /**
+     * События соединений пула: завершение подключения или данные/EOF от сервера.
+     */
+    public void handleEvent(SelectionKey key) {
+        Entry entry = (Entry) key.attachment();
+        if (closed) {
+            closeQuietly(entry.channel);
+            return;
+        }
+        try {
+            if (key.isConnectable()) {
+                if (entry.channel.finishConnect()) {
+                    key.interestOps(SelectionKey.OP_READ);
+                    entry.destination.pending--;
+                    entry.ready = true;
+                    entry.destination.ready.addLast(entry);
+                    entry.expiry = timerWheel.schedule(maxIdleMillis, () -> expire(entry));
+                }
+            } else if (key.isReadable()) {
+                // до запроса клиента сервер молчит; данные или EOF - соединение непригодно
+                fail(entry);
+            }
+        } catch (IOException e) {
+            log.debug("Upstream pool connection to {} failed: {}", entry.destination.host, e.getMessage());
+            fail(entry);
+        }
+    }
+
+    /**
+     * Закрывает готовые соединения и прекращает пополнение. Подключения в
+     * процессе закрываются по мере завершения. Вызывать в потоке реактора.
+     */
+    public void close() {
+        closed = true;
+        for (Destination destination: destinations.values()) {
+            Entry entry;
+            while ((entry = destination.ready.pollFirst()) != null) {
+                entry.expiry.cancel();
+                closeQuietly(entry.channel);
+            }
+        }
+    }
+
+    private void fill(Destination destination) {
+        while (!closed && destination.pending + destination.ready.size() < size) {
+            destination.pending++;
+            CompletableFuture<InetAddress[]> resolution = dnsResolver.resolve(destination.host);
+            if (resolution.isDone()) {
+                open(destination, resolution.isCompletedExceptionally() ? null : resolution.join());
+            } else {
+                resolution.whenComplete((addresses, error) -> reactorExecutor.execute(() ->
+                        open(destination, error == null ? addresses : null)));
+            }
+        }
+    }
+
+    private void open(Destination destination, InetAddress[] addresses) {
+        if (closed) {
+            return;
+        }
+        if (addresses == null || addresses.length == 0) {
+            log.warn("Failed to resolve upstream pool destination: " + destination.host);
+            retry(destination);
+            return;
+        }
+
+        SocketChannel channel = null;
+        try {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            channel.connect(new InetSocketAddress(addresses[0], destination.port));
+            channel.register(selector, SelectionKey.OP_CONNECT, new Entry(destination, channel));
+        } catch (IOException e) {
+            log.debug("Failed to open upstream pool connection to {}: {}", destination.host, e.getMessage());
+            closeQuietly(channel);
+            retry(destination);
+        }
+    }
+
+    /**
+     * Место неудавшегося подключения остаётся занятым до повторной попытки:
+     * иначе {@link #fill(Destination)} сразу повторил бы синхронную неудачу,
+     * например закэшированный отрицательный ответ DNS, в бесконечном цикле.
+     */
+    private void retry(Destination destination) {
+        timerWheel.schedule(RETRY_DELAY_MILLIS, () -> {
+            destination.pending--;
+            fill(destination);
+        });
+    }
+
+    private void expire(Entry entry) {
+        closeQuietly(entry.channel);
+        entry.destination.ready.remove(entry);
+    }
+
+    private void fail(Entry entry) {
+        closeQuietly(entry.channel);
+        if (entry.ready) {
+            entry.destination.ready.remove(entry);
+            entry.expiry.cancel();
+            entry.destination.pending++;
+        }
+        retry(entry.destination);
+    }
+
+    private void closeQuietly(SocketChannel channel) {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            log.warn("Failed to close upstream pool connection: " + e.getMessage());
+        }
+    }
+
+    private static String key(String host, int port) {
+        return host.toLowerCase(Locale.ROOT) + ":" + port;
+    }
+
+    private static final class Destination {
+        private final String host;
+        private final int port;
+        private final ArrayDeque<Entry> ready = new ArrayDeque<>();
+        // подключения в процессе, включая ожидание DNS
+        private int pending;
+
+        private Destination(String host, int port) {
+            this.host = host;
+            this.port = port;
+        }
+    }
+
+    static final class Entry {
+        private final Destination destination;
+        private final SocketChannel channel;
+        private boolean ready;
+        private TimerWheel.Timeout expiry;
+
+        private Entry(Destination destination, SocketChannel channel) {
+            this.destination = destination;
+            this.channel = channel;
+        }
+    }
+}
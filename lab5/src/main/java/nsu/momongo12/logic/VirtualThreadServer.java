@@ -0,0 +1,438 @@
+package nsu.momongo12.logic;
+
+import lombok.extern.slf4j.Slf4j;
+import nsu.momongo12.config.Config;
+import nsu.momongo12.config.Socks5Constants;
+import nsu.momongo12.metrics.MetricsServer;
+import nsu.momongo12.metrics.ProxyMetrics;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Режим «виртуальный поток на туннель»: каждый клиент обслуживается своим
+ * виртуальным потоком, который проводит рукопожатие на блокирующем сокете
+ * тем же {@link Socks5HandshakeParser}, что и реакторы, а затем пересылает
+ * данные двумя блокирующими циклами копирования - по одному на направление.
+ * <p>
+ * UDP ASSOCIATE в этом режиме не поддерживается.
+ *
+ * @author momongo12
+ * @version 1.0
+ */
+@Slf4j
+public class VirtualThreadServer implements ProxyServer {
+
+    private static final long DRAIN_POLL_MILLIS = 100;
+
+    private final ServerSocket serverSocket;
+    private final DnsResolver dnsResolver;
+    private final CredentialStore credentialStore;
+    private final TrafficShaper trafficShaper;
+    private final ProxyMetrics metrics = new ProxyMetrics();
+    private final MetricsServer metricsServer;
+    private final ExecutorService tunnelExecutor;
+    // открытые сокеты, чтобы закрыть их при остановке сервера
+    private final Set<Socket> sockets = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger openTunnels = new AtomicInteger();
+    private volatile boolean draining;
+
+    private final int bufferSize;
+    private final int handshakeTimeoutMillis;
+    private final int connectTimeoutMillis;
+    private final long idleTimeoutMillis;
+    private final long drainTimeoutMillis;
+
+    public VirtualThreadServer() throws IOException {
+        dnsResolver = new DnsResolver(Config.getDnsResolverThreads(), Config.getDnsCacheTtlMillis(),
+                Config.getDnsNegativeCacheTtlMillis(), Config.getDnsCacheSize());
+        credentialStore = CredentialStore.fromConfig();
+        trafficShaper = TrafficShaper.fromConfig();
+        tunnelExecutor = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("socks5-tunnel-", 0).factory());
+        bufferSize = Config.getBufferSize();
+        handshakeTimeoutMillis = (int) Config.getHandshakeTimeoutMillis();
+        connectTimeoutMillis = (int) Config.getConnectTimeoutMillis();
+        idleTimeoutMillis = Config.getIdleTimeoutMillis();
+        drainTimeoutMillis = Config.getDrainTimeoutMillis();
+
+        serverSocket = new ServerSocket();
+        if (Config.isServerReusePort()) {
+            if (serverSocket.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+                serverSocket.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            } else {
+                log.warn("SO_REUSEPORT is not supported on this platform");
+            }
+        }
+        serverSocket.bind(new InetSocketAddress(Config.getServerPort()));
+        // реакторов нет: в метриках только счётчики, без снимков состояния
+        metricsServer = Config.getMetricsPort() > 0
+                ? new MetricsServer(Config.getMetricsBindAddress(), Config.getMetricsPort(), metrics,
+                        new Socks5Reactor[0])
+                : null;
+
+        log.info("SOCKS5 server started and listen port: {}, virtual thread per tunnel", Config.getServerPort());
+    }
+
+    @Override
+    public void start() throws IOException {
+        if (metricsServer != null) {
+            metricsServer.start();
+        }
+
+        while (!serverSocket.isClosed()) {
+            Socket client;
+            try {
+                client = serverSocket.accept();
+            } catch (SocketException e) {
+                if (serverSocket.isClosed()) {
+                    break;
+                }
+                throw e;
+            }
+            client.setTcpNoDelay(true);
+            sockets.add(client);
+            metrics.recordAccepted();
+            openTunnels.incrementAndGet();
+            tunnelExecutor.execute(new Tunnel(client, System.nanoTime()));
+        }
+
+        if (draining) {
+            awaitDrained();
+        }
+    }
+
+    @Override
+    public void drain() {
+        draining = true;
+        closeQuietly(serverSocket);
+    }
+
+    private void awaitDrained() {
+        log.info("Stopped accepting connections, draining");
+        long deadline = System.currentTimeMillis() + drainTimeoutMillis;
+        while (openTunnels.get() > 0 && System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(DRAIN_POLL_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+
+        int open = openTunnels.get();
+        if (open > 0) {
+            log.warn("Drain timed out, closing {} open connections", open);
+        } else {
+            log.info("All connections drained");
+        }
+    }
+
+    @Override
+    public void close() throws Exception {
+        serverSocket.close();
+        if (metricsServer != null) {
+            metricsServer.close();
+        }
+        for (Socket socket: sockets) {
+            closeQuietly(socket);
+        }
+        tunnelExecutor.shutdownNow();
+        dnsResolver.close();
+        if (credentialStore != null) {
+            credentialStore.close();
+        }
+
+        log.info("Socks5 server shutdown");
+    }
+
+    private void closeQuietly(Closeable socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            log.warn("Failed to close socket: " + e.getMessage());
+        }
+    }
+
+    private final class Tunnel implements Runnable {
+
+        private final Socket client;
+        private final long acceptedAt;
+        private final ByteBuffer replyBuffer = ByteBuffer.allocate(Socks5Constants.RESPONSE_HEADER_SIZE);
+        private Socket upstream;
+        private String user;
+        private volatile TrafficShaper.Bucket[] rateLimits;
+
+        // обновляется обоими направлениями; таймаут чтения в одном из них не
+        // закрывает туннель, если данные идут в другом
+        private volatile long lastActivity;
+
+        private Tunnel(Socket client, long acceptedAt) {
+            this.client = client;
+            this.acceptedAt = acceptedAt;
+        }
+
+        @Override
+        public void run() {
+            try {
+                client.setSoTimeout(handshakeTimeoutMillis);
+                if (handshake()) {
+                    relay();
+                }
+            } catch (SocketTimeoutException e) {
+                log.debug("Handshake timed out: {}", client.getRemoteSocketAddress());
+            } catch (IOException e) {
+                log.debug("Tunnel failed: " + e.getMessage());
+            } finally {
+                close();
+                openTunnels.decrementAndGet();
+            }
+        }
+
+        /**
+         * @return true, если туннель к серверу установлен
+         */
+        private boolean handshake() throws IOException {
+            Socks5HandshakeParser parser = new Socks5HandshakeParser();
+            ByteBuffer buffer = parser.getBuffer();
+            InputStream in = client.getInputStream();
+
+            try {
+                while (true) {
+                    if (!buffer.hasRemaining()) {
+                        throw new Socks5Exception("Handshake message too large", Socks5Constants.RESPONSE_GENERAL_FAILURE);
+                    }
+                    int bytesRead = in.read(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+                    if (bytesRead == -1) {
+                        return false;
+                    }
+                    buffer.position(buffer.position() + bytesRead);
+
+                    Socks5HandshakeParser.Result result;
+                    while ((result = parser.parse()) != Socks5HandshakeParser.Result.NEED_MORE_DATA) {
+                        if (result == Socks5HandshakeParser.Result.GREETING) {
+                            if (!handleGreeting(parser)) {
+                                return false;
+                            }
+                        } else if (result == Socks5HandshakeParser.Result.AUTHENTICATION) {
+                            if (!handleAuthentication(parser)) {
+                                return false;
+                            }
+                        } else {
+                            return handleRequest(parser);
+                        }
+                    }
+                }
+            } catch (Socks5Exception e) {
+                log.debug("Handshake failed: {}", e.getMessage());
+                writeReply(e.getReplyCode());
+                return false;
+            }
+        }
+
+        private boolean handleGreeting(Socks5HandshakeParser parser) throws IOException {
+            byte requiredMethod = credentialStore != null
+                    ? Socks5Constants.AUTH_METHOD_USERNAME_PASSWORD
+                    : Socks5Constants.AUTH_METHOD_NO_AUTH;
+            boolean methodSupported = parser.isMethodOffered(requiredMethod);
+            byte method = methodSupported ? requiredMethod : Socks5Constants.AUTH_METHOD_NO_ACCEPTABLE_METHODS;
+            client.getOutputStream().write(new byte[]{Socks5Constants.SOCKS_VERSION, method});
+            if (methodSupported && credentialStore != null) {
+                parser.expectAuthentication();
+            }
+            return methodSupported;
+        }
+
+        private boolean handleAuthentication(Socks5HandshakeParser parser) throws IOException {
+            boolean authenticated = credentialStore.verify(parser.getUsername(), parser.getPassword());
+            parser.clearPassword();
+            metrics.recordAuthentication(authenticated);
+            byte status = authenticated ? Socks5Constants.AUTH_STATUS_SUCCESS : Socks5Constants.AUTH_STATUS_FAILURE;
+            client.getOutputStream().write(new byte[]{Socks5Constants.AUTH_VERSION, status});
+            if (!authenticated) {
+                log.debug("Authentication failed for user {}", parser.getUsername());
+                return false;
+            }
+            user = parser.getUsername();
+            return true;
+        }
+
+        private boolean handleRequest(Socks5HandshakeParser parser) throws IOException {
+            if (parser.getCommand() != Socks5Constants.COMMAND_CONNECT) {
+                writeReply(Socks5Constants.RESPONSE_COMMAND_NOT_SUPPORTED);
+                return false;
+            }
+
+            InetAddress destinationAddress;
+            if (parser.getAddressType() == Socks5Constants.ADDRESS_TYPE_IPV4) {
+                destinationAddress = InetAddress.getByAddress(parser.getIpv4AddressBytes());
+            } else {
+                destinationAddress = resolve(parser.getDomain());
+                if (destinationAddress == null) {
+                    writeReply(Socks5Constants.RESPONSE_HOST_UNREACHABLE);
+                    return false;
+                }
+            }
+
+            if (trafficShaper != null) {
+                rateLimits = trafficShaper.acquire(((InetSocketAddress) client.getRemoteSocketAddress())
+                        .getAddress().getHostAddress(), user, parser.getHost());
+            }
+
+            long connectStartedAt = System.nanoTime();
+            upstream = new Socket();
+            sockets.add(upstream);
+            try {
+                upstream.setTcpNoDelay(true);
+                upstream.connect(new InetSocketAddress(destinationAddress, parser.getPort()), connectTimeoutMillis);
+            } catch (SocketTimeoutException e) {
+                log.debug("Connect to {} timed out", destinationAddress.getHostAddress());
+                writeReply(Socks5Constants.RESPONSE_TTL_EXPIRED);
+                return false;
+            } catch (ConnectException e) {
+                log.warn("Failed to connect to {}: {}", destinationAddress.getHostAddress(), e.getMessage());
+                writeReply(Socks5Constants.RESPONSE_CONNECTION_REFUSED);
+                return false;
+            } catch (IOException e) {
+                log.warn("Failed to connect to {}: {}", destinationAddress.getHostAddress(), e.getMessage());
+                writeReply(Socks5Constants.RESPONSE_HOST_UNREACHABLE);
+                return false;
+            }
+
+            writeReply(Socks5Constants.RESPONSE_SUCCESS);
+            long now = System.nanoTime();
+            metrics.recordTunnelOpened(now - acceptedAt, now - connectStartedAt);
+
+            // данные, присланные клиентом сразу за запросом, уходят серверу первыми
+            if (parser.getPendingBytes() > 0) {
+                ByteBuffer pending = ByteBuffer.allocate(parser.getPendingBytes());
+                parser.transferPending(pending);
+                upstream.getOutputStream().write(pending.array(), 0, pending.position());
+            }
+            return true;
+        }
+
+        private InetAddress resolve(String domain) {
+            try {
+                InetAddress[] addresses = dnsResolver.resolve(domain).get();
+                return addresses.length > 0 ? addresses[0] : null;
+            } catch (ExecutionException e) {
+                log.warn("Failed to resolve address: " + domain);
+                return null;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+
+        private void relay() throws IOException {
+            lastActivity = System.currentTimeMillis();
+            client.setSoTimeout((int) idleTimeoutMillis);
+            upstream.setSoTimeout((int) idleTimeoutMillis);
+
+            Future<?> serverToClient = tunnelExecutor.submit(() -> copy(upstream, client, false));
+            copy(client, upstream, true);
+            try {
+                serverToClient.get();
+            } catch (ExecutionException e) {
+                log.debug("Relay failed: " + e.getCause().getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * Копирует одно направление до EOF и передаёт EOF дальше. При ошибке
+         * закрывает оба сокета, чтобы второе направление тоже завершилось.
+         */
+        private void copy(Socket source, Socket target, boolean clientToServer) {
+            byte[] buffer = new byte[bufferSize];
+            try {
+                InputStream in = source.getInputStream();
+                OutputStream out = target.getOutputStream();
+                while (true) {
+                    int bytesRead;
+                    try {
+                        bytesRead = in.read(buffer);
+                    } catch (SocketTimeoutException e) {
+                        long idle = System.currentTimeMillis() - lastActivity;
+                        if (idle < idleTimeoutMillis) {
+                            continue;
+                        }
+                        log.debug("Tunnel idle for {} ms, closing", idle);
+                        close();
+                        return;
+                    }
+                    if (bytesRead == -1) {
+                        target.shutdownOutput();
+                        return;
+                    }
+
+                    out.write(buffer, 0, bytesRead);
+                    lastActivity = System.currentTimeMillis();
+                    if (clientToServer) {
+                        metrics.recordClientToServer(bytesRead);
+                    } else {
+                        metrics.recordServerToClient(bytesRead);
+                    }
+                    throttle(bytesRead);
+                }
+            } catch (IOException e) {
+                if (!source.isClosed()) {
+                    log.debug("Relay failed: " + e.getMessage());
+                }
+                close();
+            }
+        }
+
+        /**
+         * Поток направления просто засыпает, пока долг корзин не погасится.
+         */
+        private void throttle(int bytes) {
+            TrafficShaper.Bucket[] limits = rateLimits;
+            if (limits == null) {
+                return;
+            }
+            long delayNanos = TrafficShaper.charge(limits, bytes, System.nanoTime());
+            if (delayNanos > 0) {
+                metrics.recordThrottled();
+                LockSupport.parkNanos(delayNanos);
+            }
+        }
+
+        private void writeReply(byte replyCode) throws IOException {
+            replyBuffer.clear();
+            Socks5Service.encodeReply(replyBuffer, replyCode, null);
+            client.getOutputStream().write(replyBuffer.array(), 0, replyBuffer.position());
+            metrics.recordReply(replyCode);
+        }
+
+        private void close() {
+            closeQuietly(client);
+            sockets.remove(client);
+            if (upstream != null) {
+                closeQuietly(upstream);
+                sockets.remove(upstream);
+            }
+            releaseRateLimits();
+        }
+
+        private synchronized void releaseRateLimits() {
+            if (rateLimits != null) {
+                TrafficShaper.release(rateLimits);
+                rateLimits = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,233 @@
+package nsu.momongo12.metrics;
+
+import lombok.extern.slf4j.Slf4j;
+import nsu.momongo12.logic.Socks5Reactor;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Минимальный HTTP-сервер метрик на собственном селекторе и потоке.
+ * {@code GET /metrics} - формат Prometheus, {@code GET /tunnels} - список
+ * туннелей. Снимки реакторов запрашиваются асинхронно, ответ пишется,
+ * когда все реакторы их вернули. {@code /tunnels} раскрывает адреса
+ * клиентов и назначений, поэтому по умолчанию сервер слушает только
+ * loopback. Соединение, не приславшее запрос целиком за
+ * {@value #REQUEST_TIMEOUT_MILLIS} мс, закрывается.
+ *
+ * @author momongo12
+ * @version 1.0
+ */
+@Slf4j
+public class MetricsServer implements Runnable, AutoCloseable {
+
+    private static final int MAX_REQUEST_SIZE = 4096;
+    private static final long SNAPSHOT_TIMEOUT_MILLIS = 1000;
+    private static final long REQUEST_TIMEOUT_MILLIS = 5000;
+
+    private final ProxyMetrics metrics;
+    private final Socks5Reactor[] reactors;
+    private final Selector selector;
+    private final ServerSocketChannel serverSocketChannel;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final Thread thread;
+
+    private volatile boolean closed;
+
+    public MetricsServer(String host, int port, ProxyMetrics metrics, Socks5Reactor[] reactors) throws IOException {
+        this.metrics = metrics;
+        this.reactors = reactors;
+        selector = Selector.open();
+        serverSocketChannel = ServerSocketChannel.open();
+        serverSocketChannel.bind(new InetSocketAddress(host, port));
+        serverSocketChannel.configureBlocking(false);
+        serverSocketChannel.register(selector, SelectionKey.OP_ACCEPT);
+        thread = new Thread(this, "metrics-http");
+        thread.setDaemon(true);
+
+        log.info("Metrics endpoint listen address: {}", serverSocketChannel.getLocalAddress());
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!closed) {
+                selector.select(REQUEST_TIMEOUT_MILLIS);
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+
+                for (SelectionKey key: selector.selectedKeys()) {
+                    try {
+                        if (key.isValid() && key.isAcceptable()) {
+                            handleAccept();
+                        } else if (key.isValid() && key.isReadable()) {
+                            handleRead(key);
+                        } else if (key.isValid() && key.isWritable()) {
+                            handleWrite(key);
+                        }
+                    } catch (IOException e) {
+                        log.debug("Metrics connection failed: " + e.getMessage());
+                        closeQuietly(key.channel());
+                    }
+                }
+                selector.selectedKeys().clear();
+                closeExpired(System.currentTimeMillis());
+            }
+        } catch (ClosedSelectorException e) {
+            log.debug("Metrics selector closed");
+        } catch (IOException e) {
+            log.error("Metrics loop failed", e);
+        }
+    }
+
+    private void handleAccept() throws IOException {
+        SocketChannel client;
+        while ((client = serverSocketChannel.accept()) != null) {
+            client.configureBlocking(false);
+            client.register(selector, SelectionKey.OP_READ,
+                    new Exchange(System.currentTimeMillis() + REQUEST_TIMEOUT_MILLIS));
+        }
+    }
+
+    private void handleRead(SelectionKey key) throws IOException {
+        SocketChannel client = (SocketChannel) key.channel();
+        Exchange exchange = (Exchange) key.attachment();
+        if (client.read(exchange.request) == -1) {
+            client.close();
+            return;
+        }
+
+        String request = new String(exchange.request.array(), 0, exchange.request.position(), StandardCharsets.US_ASCII);
+        if (!request.contains("\r\n\r\n")) {
+            if (!exchange.request.hasRemaining()) {
+                respond(key, "400 Bad Request", "request too large\n");
+            }
+            return;
+        }
+
+        key.interestOps(0);
+        exchange.requestDeadline = 0;
+        String[] requestLine = request.substring(0, request.indexOf("\r\n")).split(" ");
+        String path = requestLine.length > 1 ? requestLine[1] : "";
+        if (!requestLine[0].equals("GET")) {
+            respond(key, "405 Method Not Allowed", "only GET is supported\n");
+        } else if (path.equals("/metrics")) {
+            collect(key, false);
+        } else if (path.equals("/tunnels")) {
+            collect(key, true);
+        } else {
+            respond(key, "404 Not Found", "try /metrics or /tunnels\n");
+        }
+    }
+
+    private void collect(SelectionKey key, boolean withTunnels) {
+        List<CompletableFuture<ReactorStats>> snapshots = new ArrayList<>(reactors.length);
+        for (Socks5Reactor reactor: reactors) {
+            snapshots.add(reactor.snapshot(withTunnels));
+        }
+
+        CompletableFuture.allOf(snapshots.toArray(new CompletableFuture[0]))
+                .orTimeout(SNAPSHOT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)
+                .whenComplete((ignored, error) -> execute(() -> {
+                    if (!key.isValid()) {
+                        return;
+                    }
+                    if (error != null) {
+                        respond(key, "503 Service Unavailable", "reactor snapshot timed out\n");
+                        return;
+                    }
+                    List<ReactorStats> stats = new ArrayList<>(snapshots.size());
+                    for (CompletableFuture<ReactorStats> snapshot: snapshots) {
+                        stats.add(snapshot.join());
+                    }
+                    respond(key, "200 OK", withTunnels ? metrics.toTunnelList(stats) : metrics.toPrometheus(stats));
+                }));
+    }
+
+    private void respond(SelectionKey key, String status, String body) {
+        byte[] content = body.getBytes(StandardCharsets.UTF_8);
+        String headers = "HTTP/1.1 " + status + "\r\n"
+                + "Content-Type: text/plain; version=0.0.4; charset=utf-8\r\n"
+                + "Content-Length: " + content.length + "\r\n"
+                + "Connection: close\r\n\r\n";
+        byte[] head = headers.getBytes(StandardCharsets.US_ASCII);
+
+        Exchange exchange = (Exchange) key.attachment();
+        exchange.response = ByteBuffer.allocate(head.length + content.length).put(head).put(content).flip();
+        key.interestOps(SelectionKey.OP_WRITE);
+    }
+
+    private void handleWrite(SelectionKey key) throws IOException {
+        SocketChannel client = (SocketChannel) key.channel();
+        Exchange exchange = (Exchange) key.attachment();
+        client.write(exchange.response);
+        if (!exchange.response.hasRemaining()) {
+            client.close();
+        }
+    }
+
+    /**
+     * Соединений к эндпоинту единицы, поэтому просроченные ищутся обходом
+     * всех ключей, а не отдельными таймерами.
+     */
+    private void closeExpired(long now) {
+        for (SelectionKey key: selector.keys()) {
+            if (key.attachment() instanceof Exchange exchange
+                    && exchange.requestDeadline != 0 && exchange.requestDeadline <= now) {
+                log.debug("Metrics request timed out");
+                closeQuietly(key.channel());
+            }
+        }
+    }
+
+    private void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    private void closeQuietly(Channel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            log.warn("Failed to close metrics connection: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void close() throws Exception {
+        closed = true;
+        selector.wakeup();
+        thread.join();
+
+        for (SelectionKey key: selector.keys()) {
+            closeQuietly(key.channel());
+        }
+        selector.close();
+    }
+
+    private static final class Exchange {
+        private final ByteBuffer request = ByteBuffer.allocate(MAX_REQUEST_SIZE);
+        private ByteBuffer response;
+        // 0 - запрос прочитан целиком
+        private long requestDeadline;
+
+        private Exchange(long requestDeadline) {
+            this.requestDeadline = requestDeadline;
+        }
+    }
+}
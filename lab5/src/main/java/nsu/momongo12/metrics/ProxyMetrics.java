@@ -0,0 +1,233 @@
+package nsu.momongo12.metrics;
+
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Глобальные счётчики прокси. Пишутся из всех реакторов на горячем пути,
+ * поэтому только {@link LongAdder} и {@link LatencyHistogram}: без блокировок
+ * и без выделения памяти. Глубины очередей и число туннелей сюда не входят,
+ * они берутся из {@link ReactorStats} в момент запроса.
+ *
+ * @author momongo12
+ * @version 1.0
+ */
+public class ProxyMetrics {
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private final LongAdder connectionsAccepted = new LongAdder();
+    private final LongAdder tunnelsOpened = new LongAdder();
+    private final LongAdder udpAssociationsOpened = new LongAdder();
+    private final LongAdder bytesClientToServer = new LongAdder();
+    private final LongAdder bytesServerToClient = new LongAdder();
+    private final LongAdder udpDatagramsFromClient = new LongAdder();
+    private final LongAdder udpDatagramsFromRemote = new LongAdder();
+    private final LongAdder udpDatagramsUnresolved = new LongAdder();
+    private final LongAdder udpDatagramsNoIpv4Address = new LongAdder();
+    private final LongAdder[] repliesByCode = new LongAdder[256];
+    private final LongAdder authenticationsSucceeded = new LongAdder();
+    private final LongAdder authenticationsFailed = new LongAdder();
+    private final LongAdder readsThrottled = new LongAdder();
+
+    private final LatencyHistogram handshakeLatency = new LatencyHistogram();
+    private final LatencyHistogram connectLatency = new LatencyHistogram();
+
+    public ProxyMetrics() {
+        for (int i = 0; i < repliesByCode.length; i++) {
+            repliesByCode[i] = new LongAdder();
+        }
+    }
+
+    public void recordAccepted() {
+        connectionsAccepted.increment();
+    }
+
+    /**
+     * @param handshakeNanos от приёма соединения до успешного ответа клиенту
+     * @param connectNanos от начала подключения к серверу до его установки
+     */
+    public void recordTunnelOpened(long handshakeNanos, long connectNanos) {
+        tunnelsOpened.increment();
+        handshakeLatency.recordNanos(handshakeNanos);
+        connectLatency.recordNanos(connectNanos);
+    }
+
+    public void recordUdpAssociationOpened(long handshakeNanos) {
+        udpAssociationsOpened.increment();
+        handshakeLatency.recordNanos(handshakeNanos);
+    }
+
+    public void recordReply(byte replyCode) {
+        repliesByCode[replyCode & 0xFF].increment();
+    }
+
+    public void recordAuthentication(boolean success) {
+        (success ? authenticationsSucceeded : authenticationsFailed).increment();
+    }
+
+    public void recordThrottled() {
+        readsThrottled.increment();
+    }
+
+    public void recordClientToServer(int bytes) {
+        bytesClientToServer.add(bytes);
+    }
+
+    public void recordServerToClient(int bytes) {
+        bytesServerToClient.add(bytes);
+    }
+
+    public void recordUdpFromClient() {
+        udpDatagramsFromClient.increment();
+    }
+
+    public void recordUdpFromRemote() {
+        udpDatagramsFromRemote.increment();
+    }
+
+    public void recordUdpUnresolved() {
+        udpDatagramsUnresolved.increment();
+    }
+
+    public void recordUdpNoIpv4Address() {
+        udpDatagramsNoIpv4Address.increment();
+    }
+
+    /**
+     * Текст в формате экспозиции Prometheus 0.0.4.
+     */
+    public String toPrometheus(List<ReactorStats> reactors) {
+        StringBuilder out = new StringBuilder(4096);
+
+        counter(out, "socks5_connections_accepted_total", "Accepted client connections.");
+        sample(out, "socks5_connections_accepted_total", null, connectionsAccepted.sum());
+        counter(out, "socks5_tunnels_opened_total", "CONNECT tunnels established.");
+        sample(out, "socks5_tunnels_opened_total", null, tunnelsOpened.sum());
+        counter(out, "socks5_udp_associations_opened_total", "UDP associations opened.");
+        sample(out, "socks5_udp_associations_opened_total", null, udpAssociationsOpened.sum());
+
+        counter(out, "socks5_relayed_bytes_total", "Bytes relayed through TCP tunnels.");
+        sample(out, "socks5_relayed_bytes_total", "direction=\"client_to_server\"", bytesClientToServer.sum());
+        sample(out, "socks5_relayed_bytes_total", "direction=\"server_to_client\"", bytesServerToClient.sum());
+        counter(out, "socks5_udp_datagrams_total", "Datagrams relayed through UDP associations.");
+        sample(out, "socks5_udp_datagrams_total", "direction=\"client_to_server\"", udpDatagramsFromClient.sum());
+        sample(out, "socks5_udp_datagrams_total", "direction=\"server_to_client\"", udpDatagramsFromRemote.sum());
+        counter(out, "socks5_udp_datagrams_dropped_total", "Datagrams to domain names that could not be relayed.");
+        sample(out, "socks5_udp_datagrams_dropped_total", "reason=\"unresolved\"", udpDatagramsUnresolved.sum());
+        sample(out, "socks5_udp_datagrams_dropped_total", "reason=\"no_ipv4_address\"", udpDatagramsNoIpv4Address.sum());
+
+        counter(out, "socks5_replies_total", "Replies sent to clients by SOCKS5 reply code.");
+        for (int code = 0; code < repliesByCode.length; code++) {
+            long count = repliesByCode[code].sum();
+            if (count > 0) {
+                sample(out, "socks5_replies_total", "code=\"" + code + "\"", count);
+            }
+        }
+
+        counter(out, "socks5_authentications_total", "Username/password authentications by outcome.");
+        sample(out, "socks5_authentications_total", "result=\"success\"", authenticationsSucceeded.sum());
+        sample(out, "socks5_authentications_total", "result=\"failure\"", authenticationsFailed.sum());
+
+        counter(out, "socks5_reads_throttled_total", "Times reading was paused by bandwidth shaping.");
+        sample(out, "socks5_reads_throttled_total", null, readsThrottled.sum());
+
+        summary(out, "socks5_handshake_latency_seconds", "From accept to the reply to the request.", handshakeLatency);
+        summary(out, "socks5_connect_latency_seconds", "Time to establish the upstream connection.", connectLatency);
+
+        gauge(out, "socks5_tunnels_active", "Established CONNECT tunnels.");
+        for (ReactorStats stats: reactors) {
+            sample(out, "socks5_tunnels_active", reactorLabel(stats), stats.getActiveTunnels());
+        }
+        gauge(out, "socks5_tunnels_connecting", "Tunnels waiting for the upstream connection.");
+        for (ReactorStats stats: reactors) {
+            sample(out, "socks5_tunnels_connecting", reactorLabel(stats), stats.getConnectingTunnels());
+        }
+        gauge(out, "socks5_handshakes_in_progress", "Clients that have not finished the handshake.");
+        for (ReactorStats stats: reactors) {
+            sample(out, "socks5_handshakes_in_progress", reactorLabel(stats), stats.getHandshaking());
+        }
+        gauge(out, "socks5_udp_associations_active", "Open UDP associations.");
+        for (ReactorStats stats: reactors) {
+            sample(out, "socks5_udp_associations_active", reactorLabel(stats), stats.getUdpAssociations());
+        }
+        gauge(out, "socks5_relay_queued_bytes", "Bytes waiting in tunnel relay queues.");
+        for (ReactorStats stats: reactors) {
+            sample(out, "socks5_relay_queued_bytes", reactorLabel(stats) + ",direction=\"client_to_server\"",
+                    stats.getQueuedClientToServer());
+            sample(out, "socks5_relay_queued_bytes", reactorLabel(stats) + ",direction=\"server_to_client\"",
+                    stats.getQueuedServerToClient());
+        }
+        gauge(out, "socks5_timers_pending", "Timeouts scheduled in the reactor timer wheel.");
+        for (ReactorStats stats: reactors) {
+            sample(out, "socks5_timers_pending", reactorLabel(stats), stats.getPendingTimers());
+        }
+        counter(out, "socks5_buffer_pool_acquires_total", "Relay buffer acquisitions by outcome.");
+        for (ReactorStats stats: reactors) {
+            sample(out, "socks5_buffer_pool_acquires_total", reactorLabel(stats) + ",result=\"hit\"",
+                    stats.getBufferPoolHits());
+            sample(out, "socks5_buffer_pool_acquires_total", reactorLabel(stats) + ",result=\"miss\"",
+                    stats.getBufferPoolMisses());
+        }
+        return out.toString();
+    }
+
+    /**
+     * Туннели по одному на строку, для разбора глазами.
+     */
+    public String toTunnelList(List<ReactorStats> reactors) {
+        StringBuilder out = new StringBuilder(4096);
+        out.append("reactor client server bytes_up bytes_down queued_up queued_down idle_ms\n");
+        for (ReactorStats stats: reactors) {
+            for (TunnelStats tunnel: stats.getTunnels()) {
+                out.append(stats.getReactorId()).append(' ')
+                        .append(tunnel.getClientAddress()).append(' ')
+                        .append(tunnel.getServerAddress()).append(' ')
+                        .append(tunnel.getBytesClientToServer()).append(' ')
+                        .append(tunnel.getBytesServerToClient()).append(' ')
+                        .append(tunnel.getQueuedClientToServer()).append(' ')
+                        .append(tunnel.getQueuedServerToClient()).append(' ')
+                        .append(tunnel.getIdleMillis()).append('\n');
+            }
+        }
+        return out.toString();
+    }
+
+    private static String reactorLabel(ReactorStats stats) {
+        return "reactor=\"" + stats.getReactorId() + "\"";
+    }
+
+    private static void counter(StringBuilder out, String name, String help) {
+        header(out, name, help, "counter");
+    }
+
+    private static void gauge(StringBuilder out, String name, String help) {
+        header(out, name, help, "gauge");
+    }
+
+    private static void header(StringBuilder out, String name, String help, String type) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder out, String name, String labels, long value) {
+        out.append(name);
+        if (labels != null) {
+            out.append('{').append(labels).append('}');
+        }
+        out.append(' ').append(value).append('\n');
+    }
+
+    private static void summary(StringBuilder out, String name, String help, LatencyHistogram histogram) {
+        header(out, name, help, "summary");
+        long[] values = histogram.getQuantiles(QUANTILES);
+        for (int i = 0; i < QUANTILES.length; i++) {
+            out.append(name).append("{quantile=\"").append(QUANTILES[i]).append("\"} ")
+                    .append(values[i] / 1e6).append('\n');
+        }
+        out.append(name).append("_sum ").append(histogram.getSumMicros() / 1e6).append('\n');
+        out.append(name).append("_count ").append(histogram.getCount()).append('\n');
+        gauge(out, name + "_max", help + " Maximum.");
+        out.append(name).append("_max ").append(histogram.getMaxMicros() / 1e6).append('\n');
+    }
+}
@@ -0,0 +1,36 @@
+package nsu.momongo12.metrics;
+
+import lombok.Data;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Снимок состояния одного реактора. Собирается в потоке реактора по запросу
+ * сервера метрик, поэтому горячий путь за глубину очередей ничего не платит.
+ *
+ * @author momongo12
+ * @version 1.0
+ */
+@Data
+public class ReactorStats {
+
+    private final int reactorId;
+    private int activeTunnels;
+    private int connectingTunnels;
+    private int handshaking;
+    private int udpAssociations;
+    private long queuedClientToServer;
+    private long queuedServerToClient;
+    private int pendingTimers;
+    private long bufferPoolHits;
+    private long bufferPoolMisses;
+    private final List<TunnelStats> tunnels = new ArrayList<>();
+
+    /**
+     * Все открытые клиентские соединения реактора, в любой фазе.
+     */
+    public int getOpenConnections() {
+        return activeTunnels + connectingTunnels + handshaking + udpAssociations;
+    }
+}
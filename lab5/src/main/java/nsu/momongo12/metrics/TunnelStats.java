@@ -0,0 +1,21 @@
+package nsu.momongo12.metrics;
+
+import lombok.Data;
+
+/**
+ * Состояние одного туннеля на момент снимка.
+ *
+ * @author momongo12
+ * @version 1.0
+ */
+@Data
+public class TunnelStats {
+
+    private final String clientAddress;
+    private final String serverAddress;
+    private final long bytesClientToServer;
+    private final long bytesServerToClient;
+    private final long queuedClientToServer;
+    private final long queuedServerToClient;
+    private final long idleMillis;
+}
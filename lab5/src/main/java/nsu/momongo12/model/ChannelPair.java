@@ -2,12 +2,14 @@ package nsu.momongo12.model;
 
 import lombok.Data;
 import lombok.extern.slf4j.Slf4j;
+import nsu.momongo12.logic.BufferPool;
+import nsu.momongo12.logic.ConnectRace;
+import nsu.momongo12.logic.Socks5HandshakeParser;
+import nsu.momongo12.logic.TimerWheel;
+import nsu.momongo12.logic.TrafficShaper;
 
 import java.io.IOException;
-import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
-import java.util.ArrayDeque;
-import java.util.Queue;
 
 /**
  * @author momongo12
@@ -20,12 +22,51 @@ public class ChannelPair {
     private SocketChannel clientChannel;
     private SocketChannel serverChannel;
 
-    private Queue<ByteBuffer> clientToServerQueue = new ArrayDeque<>();
-    private Queue<ByteBuffer> serverToClientQueue = new ArrayDeque<>();
+    private final BufferPool bufferPool;
 
-    public ChannelPair(SocketChannel clientChannel, SocketChannel serverChannel) {
+    // состояние рукопожатия, пока туннель не установлен
+    private Socks5HandshakeParser handshake;
+
+    // имя пользователя, прошедшего аутентификацию, или null
+    private String user;
+
+    // корзины ограничения скорости туннеля, null - без ограничений
+    private TrafficShaper.Bucket[] rateLimits;
+
+    // подключение к серверу, пока ни одна попытка не установлена
+    private ConnectRace connectRace;
+
+    // UDP ASSOCIATE, для которого это соединение управляющее
+    private UdpAssociation udpAssociation;
+
+    // текущий таймаут фазы: рукопожатие, подключение или простой туннеля
+    private TimerWheel.Timeout timeout;
+    private long lastActivity;
+
+    // System.nanoTime() приёма соединения и начала подключения к серверу, для метрик
+    private long acceptedAt;
+    private long connectStartedAt;
+
+    private final RelayQueue clientToServerQueue;
+    private final RelayQueue serverToClientQueue;
+
+    public ChannelPair(SocketChannel clientChannel, SocketChannel serverChannel, BufferPool bufferPool,
+                       int relayHighWatermark, int relayLowWatermark) {
         this.clientChannel = clientChannel;
         this.serverChannel = serverChannel;
+        this.bufferPool = bufferPool;
+        this.clientToServerQueue = new RelayQueue(relayHighWatermark, relayLowWatermark);
+        this.serverToClientQueue = new RelayQueue(relayHighWatermark, relayLowWatermark);
+    }
+
+    /**
+     * Новый таймаут заменяет предыдущий, у соединения всегда не больше одного.
+     */
+    public void setTimeout(TimerWheel.Timeout timeout) {
+        if (this.timeout != null) {
+            this.timeout.cancel();
+        }
+        this.timeout = timeout;
     }
 
     public void close() throws IOException {
@@ -38,6 +79,27 @@ public class ChannelPair {
             }
         } catch (IOException e) {
             log.warn("Error while closing channels: " + e.getMessage());
+        } finally {
+            setTimeout(null);
+            if (connectRace != null) {
+                connectRace.close();
+            }
+            clientToServerQueue.release(bufferPool);
+            serverToClientQueue.release(bufferPool);
+            if (udpAssociation != null) {
+                udpAssociation.close();
+            }
+            if (rateLimits != null) {
+                TrafficShaper.release(rateLimits);
+                rateLimits = null;
+            }
         }
     }
+
+    /**
+     * Оба направления получили EOF и полностью выписаны в противоположные каналы.
+     */
+    public boolean isFinished() {
+        return clientToServerQueue.isFinished() && serverToClientQueue.isFinished();
+    }
 }
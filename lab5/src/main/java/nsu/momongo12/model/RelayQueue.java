@@ -0,0 +1,133 @@
+package nsu.momongo12.model;
+
+import nsu.momongo12.logic.BufferPool;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Очередь одного направления туннеля с учётом объёма данных в ней.
+ * Чтение из источника приостанавливается, когда объём доходит до верхней
+ * отметки, и возобновляется, когда опускается до нижней.
+ *
+ * @author momongo12
+ * @version 1.0
+ */
+public class RelayQueue {
+
+    private final ArrayDeque<ByteBuffer> buffers = new ArrayDeque<>();
+    private final int highWatermark;
+    private final int lowWatermark;
+
+    private long queuedBytes;
+    private long relayedBytes;
+    private boolean sourceClosed;
+    // чтение из источника приостановлено ограничением скорости
+    private boolean throttled;
+    private ByteBuffer spliceBuffer;
+
+    public RelayQueue(int highWatermark, int lowWatermark) {
+        this.highWatermark = highWatermark;
+        this.lowWatermark = lowWatermark;
+    }
+
+    public void add(ByteBuffer buffer) {
+        buffers.addLast(buffer);
+        queuedBytes += buffer.remaining();
+    }
+
+    public ByteBuffer peek() {
+        return buffers.peekFirst();
+    }
+
+    public ByteBuffer poll() {
+        return buffers.pollFirst();
+    }
+
+    /**
+     * Учитывает байты, записанные из головного буфера в целевой канал.
+     */
+    public void consumed(int bytes) {
+        queuedBytes -= bytes;
+    }
+
+    public boolean isEmpty() {
+        return buffers.isEmpty();
+    }
+
+    public long getQueuedBytes() {
+        return queuedBytes;
+    }
+
+    /**
+     * Учитывает байты, прочитанные из источника этого направления.
+     */
+    public void recordRelayed(int bytes) {
+        relayedBytes += bytes;
+    }
+
+    public long getRelayedBytes() {
+        return relayedBytes;
+    }
+
+    public boolean isAboveHighWatermark() {
+        return queuedBytes >= highWatermark;
+    }
+
+    public boolean isBelowLowWatermark() {
+        return queuedBytes <= lowWatermark;
+    }
+
+    /**
+     * Источник прислал EOF: новых данных не будет, после опустошения очереди
+     * можно закрыть запись в целевой канал.
+     */
+    public void markSourceClosed() {
+        sourceClosed = true;
+    }
+
+    public boolean isSourceClosed() {
+        return sourceClosed;
+    }
+
+    public void setThrottled(boolean throttled) {
+        this.throttled = throttled;
+    }
+
+    public boolean isThrottled() {
+        return throttled;
+    }
+
+    public boolean isFinished() {
+        return sourceClosed && buffers.isEmpty();
+    }
+
+    /**
+     * Постоянный буфер направления для режима {@code SPLICE}, берётся из пула
+     * при первом чтении и возвращается только при закрытии туннеля.
+     */
+    public ByteBuffer getSpliceBuffer(BufferPool bufferPool) {
+        if (spliceBuffer == null) {
+            spliceBuffer = bufferPool.acquire();
+        }
+        return spliceBuffer;
+    }
+
+    public boolean isSpliceBuffer(ByteBuffer buffer) {
+        return buffer == spliceBuffer;
+    }
+
+    public void release(BufferPool bufferPool) {
+        ByteBuffer buffer;
+        while ((buffer = buffers.pollFirst()) != null) {
+            if (buffer != spliceBuffer) {
+                bufferPool.release(buffer);
+            }
+        }
+        queuedBytes = 0;
+        if (spliceBuffer != null) {
+            bufferPool.release(spliceBuffer);
+            spliceBuffer = null;
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package nsu.momongo12.model;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * UDP ASSOCIATE одного клиента: канал, на который клиент шлёт датаграммы,
+ * канал для обмена с удалёнными узлами и таблица трансляции между ними.
+ * Живёт, пока открыто управляющее TCP-соединение и идёт трафик.
+ *
+ * @author momongo12
+ * @version 1.0
+ */
+@Getter
+@Setter
+@RequiredArgsConstructor
+@Slf4j
+public class UdpAssociation {
+
+    private final ChannelPair controlPair;
+    private final DatagramChannel clientSideChannel;
+    private final DatagramChannel remoteSideChannel;
+    private final UdpNatTable natTable;
+
+    // датаграммы принимаются только с адреса управляющего соединения
+    private final InetAddress clientIp;
+    private InetSocketAddress clientAddress;
+    private long lastActivity;
+
+    public void close() {
+        try {
+            clientSideChannel.close();
+        } catch (IOException e) {
+            log.warn("Error while closing UDP association: " + e.getMessage());
+        } finally {
+            try {
+                remoteSideChannel.close();
+            } catch (IOException e) {
+                log.warn("Error while closing UDP association: " + e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package nsu.momongo12.model;
+
+import java.net.InetSocketAddress;
+
+/**
+ * Таблица трансляции одной UDP-ассоциации: удалённые IPv4-адреса, с которыми
+ * клиент обменивается датаграммами. Ключ - адрес и порт, упакованные в long,
+ * поэтому поиск по заголовку датаграммы не создаёт объектов.
+ *
+ * @author momongo12
+ * @version 1.0
+ */
+public class UdpNatTable {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final int maxEntries;
+    private Entry[] entries = new Entry[INITIAL_CAPACITY];
+    private int size;
+
+    public UdpNatTable(int maxEntries) {
+        this.maxEntries = maxEntries;
+    }
+
+    public static long key(int ipv4Address, int port) {
+        return ((ipv4Address & 0xFFFFFFFFL) << 16) | (port & 0xFFFF);
+    }
+
+    public Entry get(long key) {
+        int mask = entries.length - 1;
+        for (int i = index(key, mask); ; i = (i + 1) & mask) {
+            Entry entry = entries[i];
+            if (entry == null || entry.key == key) {
+                return entry;
+            }
+        }
+    }
+
+    /**
+     * Добавляет адрес в таблицу. Возвращает null, если таблица заполнена.
+     */
+    public Entry put(long key, InetSocketAddress remoteAddress, long now) {
+        Entry existing = get(key);
+        if (existing != null) {
+            return existing;
+        }
+        if (size >= maxEntries) {
+            return null;
+        }
+        if ((size + 1) * 2 > entries.length) {
+            resize(entries.length * 2);
+        }
+        Entry entry = new Entry(key, remoteAddress, now);
+        insert(entries, entry);
+        size++;
+        return entry;
+    }
+
+    /**
+     * Убирает записи без трафика с момента deadline. Таблица перестраивается
+     * целиком, это происходит только при периодической чистке.
+     */
+    public void expire(long deadline) {
+        boolean anyExpired = false;
+        for (Entry entry: entries) {
+            if (entry != null && entry.lastActivity <= deadline) {
+                anyExpired = true;
+                break;
+            }
+        }
+        if (!anyExpired) {
+            return;
+        }
+
+        Entry[] survivors = new Entry[entries.length];
+        int survived = 0;
+        for (Entry entry: entries) {
+            if (entry != null && entry.lastActivity > deadline) {
+                insert(survivors, entry);
+                survived++;
+            }
+        }
+        entries = survivors;
+        size = survived;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private void resize(int capacity) {
+        Entry[] resized = new Entry[capacity];
+        for (Entry entry: entries) {
+            if (entry != null) {
+                insert(resized, entry);
+            }
+        }
+        entries = resized;
+    }
+
+    private static void insert(Entry[] table, Entry entry) {
+        int mask = table.length - 1;
+        int i = index(entry.key, mask);
+        while (table[i] != null) {
+            i = (i + 1) & mask;
+        }
+        table[i] = entry;
+    }
+
+    private static int index(long key, int mask) {
+        long hash = key * 0x9E3779B97F4A7C15L;
+        return (int) (hash >>> 32) & mask;
+    }
+
+    public static final class Entry {
+        private final long key;
+        private final InetSocketAddress remoteAddress;
+        private long lastActivity;
+
+        private Entry(long key, InetSocketAddress remoteAddress, long lastActivity) {
+            this.key = key;
+            this.remoteAddress = remoteAddress;
+            this.lastActivity = lastActivity;
+        }
+
+        public InetSocketAddress getRemoteAddress() {
+            return remoteAddress;
+        }
+
+        public void touch(long now) {
+            lastActivity = now;
+        }
+    }
+}
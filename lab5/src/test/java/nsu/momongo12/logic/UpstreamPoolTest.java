@@ -0,0 +1,96 @@
+package nsu.momongo12.logic;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.time.Duration;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Пополнение пула при неудачах и истечении простоя. Поток теста играет роль
+ * потока реактора: задачи реактора выполняются сразу, время колеса таймеров
+ * двигает сам тест.
+ *
+ * @author momongo12
+ * @version 1.0
+ */
+class UpstreamPoolTest {
+
+    private static final String UNRESOLVABLE_HOST = "upstream-pool-test.invalid";
+    private static final int POOL_SIZE = 2;
+    private static final long RETRY_DELAY_MILLIS = 5000;
+
+    private final DnsResolver dnsResolver = new DnsResolver(1, 60_000, 60_000, 16);
+    private Selector selector;
+
+    @AfterEach
+    void tearDown() throws Exception {
+        dnsResolver.close();
+        if (selector != null) {
+            selector.close();
+        }
+    }
+
+    @Test
+    void unresolvableDestinationIsRetriedOncePerSlot() throws Exception {
+        // отрицательный ответ уже в кэше: DNS завершается синхронно, как при повторной попытке
+        dnsResolver.resolve(UNRESOLVABLE_HOST).exceptionally(error -> null).join();
+        assertTrue(dnsResolver.resolve(UNRESOLVABLE_HOST).isCompletedExceptionally());
+
+        selector = Selector.open();
+        long now = System.currentTimeMillis();
+        TimerWheel timerWheel = new TimerWheel(100, 512, now);
+        UpstreamPool pool = new UpstreamPool(selector, Runnable::run, dnsResolver, timerWheel,
+                List.of(UNRESOLVABLE_HOST + ":80"), POOL_SIZE, 60_000);
+
+        assertTimeoutPreemptively(Duration.ofSeconds(5), pool::start);
+        assertEquals(POOL_SIZE, timerWheel.getPendingCount());
+
+        for (int attempt = 1; attempt <= 3; attempt++) {
+            long retryTime = now + attempt * (RETRY_DELAY_MILLIS + 100);
+            assertTimeoutPreemptively(Duration.ofSeconds(5), () -> timerWheel.advance(retryTime));
+            assertEquals(POOL_SIZE, timerWheel.getPendingCount());
+        }
+        assertEquals(0, selector.keys().size());
+    }
+
+    @Test
+    void idleConnectionsExpireWithoutReconnecting() throws Exception {
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            int port = server.socket().getLocalPort();
+
+            selector = Selector.open();
+            long now = System.currentTimeMillis();
+            TimerWheel timerWheel = new TimerWheel(100, 512, now);
+            long maxIdleMillis = 1000;
+            UpstreamPool pool = new UpstreamPool(selector, Runnable::run, dnsResolver, timerWheel,
+                    List.of("127.0.0.1:" + port), POOL_SIZE, maxIdleMillis);
+            pool.start();
+
+            long deadline = System.nanoTime() + Duration.ofSeconds(5).toNanos();
+            while (timerWheel.getPendingCount() < POOL_SIZE) {
+                assertTrue(System.nanoTime() < deadline, "Pool connections were not established");
+                selector.select(100);
+                for (SelectionKey key: selector.selectedKeys()) {
+                    pool.handleEvent(key);
+                }
+                selector.selectedKeys().clear();
+            }
+
+            timerWheel.advance(now + maxIdleMillis + 200);
+            selector.selectNow();
+            assertEquals(0, timerWheel.getPendingCount());
+            assertEquals(0, selector.keys().size());
+        }
+    }
+}